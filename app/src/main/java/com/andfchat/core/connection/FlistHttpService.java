@@ -0,0 +1,63 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.connection;
+
+import okhttp3.OkHttpClient;
+import retrofit2.GsonConverterFactory;
+import retrofit2.Retrofit;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Holds the one OkHttp client and Retrofit instance used for all calls to the F-List web api,
+ * so connections are pooled and reused instead of doing a new TLS handshake for every call.
+ * Calls are enqueued on the dispatcher of the client and run concurrently.
+ *
+ * @author AndFChat
+ */
+@Singleton
+public class FlistHttpService {
+
+    public static final String BASE_URL = "https://www.f-list.net";
+
+    private final OkHttpClient client;
+    private final FlistHttpClient httpClient;
+
+    @Inject
+    public FlistHttpService() {
+        client = new OkHttpClient();
+
+        Retrofit restAdapter = new Retrofit.Builder()
+                .baseUrl(BASE_URL)
+                .client(client)
+                .addConverterFactory(GsonConverterFactory.create())
+                .build();
+
+        httpClient = restAdapter.create(FlistHttpClient.class);
+    }
+
+    public FlistHttpClient getClient() {
+        return httpClient;
+    }
+
+    public OkHttpClient getOkHttpClient() {
+        return client;
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import retrofit2.Callback;
+import retrofit2.Response;
+import roboguice.util.Ln;
+import android.os.SystemClock;
+
+import com.andfchat.core.data.SessionData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Caches the api ticket of the session together with the time it was issued. Tickets are valid for 30 minutes,
+ * an expired ticket is replaced by logging in again with the stored account data before the call is made.
+ * Tickets getting old are still handed out but refreshed in the background, so most calls need no extra round-trip.
+ * Concurrent requests for a new ticket are merged into one login.
+ *
+ * @author AndFChat
+ */
+@Singleton
+public class TicketManager {
+
+    // Ticket is not used anymore after this time, leaving some margin to the 30 minutes it is valid for
+    private final static long TICKET_LIFETIME = 25 * 60 * 1000;
+    // Ticket is refreshed in the background after this time
+    private final static long REFRESH_AGE = 20 * 60 * 1000;
+
+    @Inject
+    private SessionData sessionData;
+    @Inject
+    private FlistHttpService httpService;
+
+    private String ticket;
+    private long issuedAt;
+
+    private final List<FeedbackListener> waiting = new ArrayList<FeedbackListener>();
+    private boolean refreshing = false;
+
+    /**
+     * Has to be called for every ticket received by a login.
+     */
+    public void setTicket(String ticket) {
+        synchronized(this) {
+            this.ticket = ticket;
+            this.issuedAt = SystemClock.elapsedRealtime();
+        }
+        sessionData.setTicket(ticket);
+    }
+
+    /**
+     * Drops the ticket, e.g. after the api rejected it, so the next call gets a new one.
+     */
+    public synchronized void invalidate() {
+        ticket = null;
+    }
+
+    /**
+     * Calls the listener with a valid ticket, logging in again if there is none.
+     */
+    public void getTicket(FeedbackListener listener) {
+        String validTicket = null;
+        boolean refresh = false;
+
+        synchronized(this) {
+            long age = SystemClock.elapsedRealtime() - issuedAt;
+
+            // Ticket might have been dropped by the session in the meantime
+            if (ticket != null && ticket.equals(sessionData.getTicket()) && age < TICKET_LIFETIME) {
+                validTicket = ticket;
+                refresh = age >= REFRESH_AGE && !refreshing;
+            } else {
+                waiting.add(listener);
+                refresh = !refreshing;
+            }
+
+            if (refresh) {
+                refreshing = true;
+            }
+        }
+
+        if (refresh) {
+            refresh();
+        }
+
+        if (validTicket != null) {
+            listener.onResponse(validTicket);
+        }
+    }
+
+    private void refresh() {
+        String account = sessionData.getAccount();
+        String password = sessionData.getPassword();
+
+        if (account == null || password == null) {
+            onRefreshFailed(new IllegalStateException("Not logged in!"));
+            return;
+        }
+
+        Ln.d("Requesting new ticket");
+        httpService.getClient().logIn(account, password).enqueue(new Callback<FlistHttpClient.LoginData>() {
+
+            @Override
+            public void onResponse(Response<FlistHttpClient.LoginData> response) {
+                FlistHttpClient.LoginData loginData = response.body();
+
+                if (loginData == null) {
+                    onRefreshFailed(new IllegalStateException("Empty response!"));
+                } else if (loginData.getError() != null && loginData.getError().length() > 0) {
+                    onRefreshFailed(new IllegalStateException(loginData.getError()));
+                } else {
+                    onRefreshed(loginData.getTicket());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                onRefreshFailed(new Exception(t));
+            }
+        });
+    }
+
+    private void onRefreshed(String newTicket) {
+        Ln.i("Successfully got a ticket");
+        setTicket(newTicket);
+
+        for (FeedbackListener listener : takeWaiting()) {
+            listener.onResponse(newTicket);
+        }
+    }
+
+    private void onRefreshFailed(Exception ex) {
+        Ln.i("Problem with getting ticket: " + ex.getMessage());
+
+        for (FeedbackListener listener : takeWaiting()) {
+            listener.onError(ex);
+        }
+    }
+
+    private synchronized List<FeedbackListener> takeWaiting() {
+        refreshing = false;
+
+        List<FeedbackListener> listeners = new ArrayList<FeedbackListener>(waiting);
+        waiting.clear();
+        return listeners;
+    }
+}
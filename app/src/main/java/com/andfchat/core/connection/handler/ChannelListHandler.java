@@ -18,8 +18,6 @@
 
 package com.andfchat.core.connection.handler;
 
-import android.text.Html;
-
 import java.util.List;
 
 import org.json.JSONArray;
@@ -32,6 +30,7 @@ import com.andfchat.core.connection.FeedbackListener;
 import com.andfchat.core.connection.ServerToken;
 import com.andfchat.core.data.Channel;
 import com.andfchat.core.data.Chatroom.ChatroomType;
+import com.andfchat.core.util.HtmlEntityDecoder;
 
 /**
  * Reads and saves official channels delivered by CHA-Token.
@@ -56,7 +55,7 @@ public class ChannelListHandler extends TokenHandler {
 
             for (int i = 0; i < jsonArray.length(); i++) {
                 String channelId = jsonArray.getJSONObject(i).getString("name");
-                String channelName = Html.fromHtml(jsonArray.getJSONObject(i).getString("title")).toString();
+                String channelName = HtmlEntityDecoder.decode(jsonArray.getJSONObject(i).getString("title"));
                 int channelUsers =  Integer.parseInt(jsonArray.getJSONObject(i).getString("characters"));
 
                 Channel channel = new Channel(channelId, channelName, ChatroomType.PRIVATE_CHANNEL);
@@ -30,6 +30,7 @@ import roboguice.util.Ln;
 import com.andfchat.R;
 import com.andfchat.core.connection.FeedbackListener;
 import com.andfchat.core.connection.ServerToken;
+import com.andfchat.core.data.CharacterNameIndex;
 import com.andfchat.core.data.FCharacter;
 import com.andfchat.core.data.RelationManager;
 import com.andfchat.core.data.messages.ChatEntry;
@@ -43,6 +44,8 @@ public class CharListHandler extends TokenHandler {
 
     @Inject
     protected RelationManager relationManager;
+    @Inject
+    protected CharacterNameIndex nameIndex;
 
     private int count;
     private Long time;
@@ -70,6 +73,7 @@ public class CharListHandler extends TokenHandler {
 
             if (count <= flistCharacters.size()) {
                 characterManager.initCharacters(flistCharacters);
+                nameIndex.setCharacters(flistCharacters.values());
             }
         } // New user connected
         else if (token == ServerToken.NLN) {
@@ -79,6 +83,8 @@ public class CharListHandler extends TokenHandler {
 
             Ln.v("Adding character to ChatLog: " + fCharacter.toString());
             characterManager.addCharacter(fCharacter);
+            // Known characters are updated instead of replaced
+            nameIndex.add(characterManager.findCharacter(fCharacter.getName()));
 
             if (fCharacter.isImportant()) {
                 ChatEntry entry = entryFactory.getNotation(fCharacter, R.string.message_connected);
@@ -105,6 +111,7 @@ public class CharListHandler extends TokenHandler {
             }
 
             characterManager.removeCharacter(fCharacter);
+            nameIndex.remove(fCharacter);
             chatroomManager.removeFlistCharFromChat(fCharacter);
         }
     }
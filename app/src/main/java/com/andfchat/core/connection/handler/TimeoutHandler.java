@@ -53,7 +53,7 @@ public class TimeoutHandler extends TokenHandler {
                     ChatEntry entry = entryFactory.getNotation(characterManager.findCharacter(operator), R.string.handler_message_timeout_you, new Object[]{chatroom.getName(), length});
                     this.addChatEntryToActiveChat(entry);
                 } else if (chatroom.isChannelMod(characterManager.findCharacter(sessionData.getCharacterName()))) {
-                    ChatEntry entry = entryFactory.getNotation(characterManager.findCharacter(character), R.string.handler_message_timeout_mod, new Object[]{chatroom.getName(), length, characterManager.findCharacter(operator)});
+                    ChatEntry entry = entryFactory.getNotation(characterManager.findCharacter(character), R.string.handler_message_timeout_mod, new Object[]{chatroom.getName(), length, operator});
                     this.addChatEntryToActiveChat(entry);
                 }
             }
@@ -19,12 +19,12 @@
 package com.andfchat.core.data;
 
 import android.content.Context;
-import android.text.Html;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import com.andfchat.core.util.HtmlEntityDecoder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -125,7 +125,7 @@ public class CharacterManager {
 
     public FCharacter changeStatus(String name, String status, String statusmsg) {
         statusChanged = true;
-        statusmsg = Html.fromHtml(statusmsg).toString();
+        statusmsg = HtmlEntityDecoder.decode(statusmsg);
         FCharacter flistChar = findCharacter(name);
         flistChar.setStatus(status, statusmsg);
 
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.andfchat.core.data.messages.ChatEntry;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Online characters sorted by name, to complete names while typing. Names are compared ignoring the case, all names
+ * starting with a prefix are found by binary search. Completions are ranked: members of the chatroom first, then
+ * friends and bookmarks, then characters who wrote there recently, the rest by name.
+ * @author AndFChat
+ */
+@Singleton
+public class CharacterNameIndex {
+
+    // Last messages of the chatroom searched for recent writers
+    private final static int RECENT_MESSAGES = 100;
+
+    // Points of the ranking, each is a bit so it is only counted once
+    private final static int MEMBER = 4;
+    private final static int RELATION = 2;
+    private final static int RECENT = 1;
+
+    private final static Comparator<FCharacter> NAME_ORDER = new Comparator<FCharacter>() {
+        @Override
+        public int compare(FCharacter lhs, FCharacter rhs) {
+            return String.CASE_INSENSITIVE_ORDER.compare(lhs.getName(), rhs.getName());
+        }
+    };
+
+    private static class Candidate {
+        private final FCharacter character;
+        private int score = 0;
+        // Position of the last message, 0 is the newest
+        private int recency = Integer.MAX_VALUE;
+
+        private Candidate(FCharacter character) {
+            this.character = character;
+        }
+    }
+
+    private final static Comparator<Candidate> RANK_ORDER = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            if (lhs.score != rhs.score) {
+                return rhs.score - lhs.score;
+            }
+            if (lhs.recency != rhs.recency) {
+                return lhs.recency < rhs.recency ? -1 : 1;
+            }
+            return NAME_ORDER.compare(lhs.character, rhs.character);
+        }
+    };
+
+    @Inject
+    private RelationManager relationManager;
+
+    private FCharacter[] characters = new FCharacter[0];
+    private int size = 0;
+
+    /**
+     * Replaces all characters, with the initial list of online characters.
+     */
+    public synchronized void setCharacters(Collection<FCharacter> online) {
+        characters = online.toArray(new FCharacter[online.size()]);
+        size = characters.length;
+        Arrays.sort(characters, NAME_ORDER);
+    }
+
+    /**
+     * Adds a character who came online, replaces a character with the same name.
+     */
+    public synchronized void add(FCharacter character) {
+        int position = lowerBound(character.getName());
+        if (position < size && characters[position].getName().equalsIgnoreCase(character.getName())) {
+            characters[position] = character;
+            return;
+        }
+
+        if (size == characters.length) {
+            characters = Arrays.copyOf(characters, Math.max(16, size + size / 2));
+        }
+        System.arraycopy(characters, position, characters, position + 1, size - position);
+        characters[position] = character;
+        size++;
+    }
+
+    /**
+     * Removes a character who went offline.
+     */
+    public synchronized void remove(FCharacter character) {
+        int position = lowerBound(character.getName());
+        if (position < size && characters[position].getName().equalsIgnoreCase(character.getName())) {
+            System.arraycopy(characters, position + 1, characters, position, size - position - 1);
+            characters[--size] = null;
+        }
+    }
+
+    public synchronized void clear() {
+        characters = new FCharacter[0];
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Online character with the name in any case, null if there is none.
+     */
+    public synchronized FCharacter find(String name) {
+        int position = lowerBound(name);
+        if (position < size && characters[position].getName().equalsIgnoreCase(name)) {
+            return characters[position];
+        }
+        return null;
+    }
+
+    /**
+     * Returns up to limit online characters whose names start with the prefix, best ranked first.
+     * @param chatroom the chatroom written in, might be null
+     */
+    public synchronized List<FCharacter> complete(String prefix, Chatroom chatroom, int limit) {
+        if (prefix.isEmpty() || limit <= 0) {
+            return new ArrayList<FCharacter>();
+        }
+
+        // Characters ranked above the rest are few, they are collected first
+        Map<FCharacter, Candidate> candidates = new HashMap<FCharacter, Candidate>();
+        if (chatroom != null) {
+            List<ChatEntry> messages = chatroom.getLastMessages(RECENT_MESSAGES);
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                FCharacter owner = messages.get(i).getOwner();
+                if (owner != null && startsWith(owner.getName(), prefix)) {
+                    FCharacter online = find(owner.getName());
+                    if (online != null) {
+                        Candidate candidate = getCandidate(candidates, online);
+                        if (candidate.recency == Integer.MAX_VALUE) {
+                            candidate.score |= RECENT;
+                            candidate.recency = messages.size() - 1 - i;
+                        }
+                    }
+                }
+            }
+
+            for (FCharacter member : chatroom.getCharacters().toArray(new FCharacter[0])) {
+                if (member != null && startsWith(member.getName(), prefix)) {
+                    getCandidate(candidates, member).score |= MEMBER;
+                }
+            }
+        }
+
+        addRelations(candidates, relationManager.getRelationList(CharRelation.FRIEND), prefix);
+        addRelations(candidates, relationManager.getRelationList(CharRelation.BOOKMARKED), prefix);
+
+        List<Candidate> ranked = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(ranked, RANK_ORDER);
+
+        List<FCharacter> result = new ArrayList<FCharacter>(limit);
+        for (int i = 0; i < ranked.size() && result.size() < limit; i++) {
+            result.add(ranked.get(i).character);
+        }
+
+        // Rest by name
+        for (int i = lowerBound(prefix); i < size && result.size() < limit && startsWith(characters[i].getName(), prefix); i++) {
+            if (!candidates.containsKey(characters[i])) {
+                result.add(characters[i]);
+            }
+        }
+
+        return result;
+    }
+
+    private void addRelations(Map<FCharacter, Candidate> candidates, Collection<String> names, String prefix) {
+        for (String name : names.toArray(new String[0])) {
+            if (startsWith(name, prefix)) {
+                FCharacter character = find(name);
+                if (character != null) {
+                    getCandidate(candidates, character).score |= RELATION;
+                }
+            }
+        }
+    }
+
+    private static Candidate getCandidate(Map<FCharacter, Candidate> candidates, FCharacter character) {
+        Candidate candidate = candidates.get(character);
+        if (candidate == null) {
+            candidate = new Candidate(character);
+            candidates.put(character, candidate);
+        }
+        return candidate;
+    }
+
+    private static boolean startsWith(String name, String prefix) {
+        return name.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    // Position of the first name not before the given one
+    private int lowerBound(String name) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(characters[middle].getName(), name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -24,7 +24,9 @@ import java.util.List;
 
 import android.text.Spannable;
 
+import com.andfchat.core.data.messages.AdEntry;
 import com.andfchat.core.data.messages.ChatEntry;
+import com.andfchat.core.data.messages.ChatEntryBuffer;
 
 public class Chatroom {
 
@@ -45,6 +47,9 @@ public class Chatroom {
         }
     }
 
+    // Entries kept until the budget is shared among the chatrooms
+    private final static int INITIAL_CAPACITY = 1000;
+
     private boolean showAdText = false;
     private boolean showAvatar = true;
 
@@ -54,8 +59,9 @@ public class Chatroom {
     private final Channel channel;
     private final int maxTextLength;
 
-    private List<ChatEntry> chatMessages;
-    private List<ChatEntry> exportableChatMessages;
+    private ChatEntryBuffer chatMessages;
+    // Entries added since the last time the budget was shared
+    private int recentMessages = 0;
     private final List<FCharacter> characters = new ArrayList<FCharacter>();
 
     private Spannable description;
@@ -69,16 +75,14 @@ public class Chatroom {
     public Chatroom(Channel channel, int maxTextLength) {
         this.channel = channel;
         this.maxTextLength = maxTextLength;
-        this.chatMessages = new ArrayList<ChatEntry>(channel.getType().maxEntries);
-        this.exportableChatMessages = new ArrayList<ChatEntry>(channel.getType().maxEntries);
+        this.chatMessages = new ChatEntryBuffer(INITIAL_CAPACITY);
     }
 
     public Chatroom(Channel channel, FCharacter character, int maxTextLength, boolean showAvatar) {
         this.channel = channel;
         this.characters.add(character);
         this.maxTextLength = maxTextLength;
-        this.chatMessages = new ArrayList<ChatEntry>(channel.getType().maxEntries);
-        this.exportableChatMessages = new ArrayList<ChatEntry>(channel.getType().maxEntries);
+        this.chatMessages = new ChatEntryBuffer(INITIAL_CAPACITY);
         this.showAvatar = showAvatar;
     }
 
@@ -167,23 +171,84 @@ public class Chatroom {
         hasNewStatus = value;
     }
 
-    public List<ChatEntry> getLastMessages(int amount) {
-        List<ChatEntry> lastMessages = new ArrayList<ChatEntry>(amount);
+    public synchronized List<ChatEntry> getLastMessages(int amount) {
+        int startPosition = Math.max(0, chatMessages.size() - amount);
+        return new ArrayList<ChatEntry>(chatMessages.subList(startPosition, chatMessages.size()));
+    }
+
+    /**
+     * Returns up to amount messages written before the given one, oldest first.
+     */
+    public synchronized List<ChatEntry> getMessagesBefore(ChatEntry entry, int amount) {
+        int position = indexOf(entry);
+        if (position <= 0) {
+            return new ArrayList<ChatEntry>();
+        }
+
+        return new ArrayList<ChatEntry>(chatMessages.subList(Math.max(0, position - amount), position));
+    }
+
+    /**
+     * Returns up to amount messages written after the given one, oldest first.
+     */
+    public synchronized List<ChatEntry> getMessagesAfter(ChatEntry entry, int amount) {
+        int position = indexOf(entry);
+        if (position == -1) {
+            // Entry is gone, continue with the latest messages
+            return getLastMessages(amount);
+        }
+
+        return new ArrayList<ChatEntry>(chatMessages.subList(position + 1, Math.min(chatMessages.size(), position + 1 + amount)));
+    }
 
-        int startPosition = 0;
-        if (chatMessages.size() > amount) {
-            startPosition = chatMessages.size() - amount;
+    /**
+     * Returns the message equal to the given one (same time, owner and type), newest first, or null.
+     */
+    public synchronized ChatEntry findMessage(ChatEntry entry) {
+        for (int i = chatMessages.size() - 1; i >= 0; i--) {
+            if (chatMessages.get(i).equals(entry)) {
+                return chatMessages.get(i);
+            }
         }
+        return null;
+    }
+
+    /**
+     * True if the entry itself is still in memory.
+     */
+    public synchronized boolean containsMessage(ChatEntry entry) {
+        return indexOf(entry) != -1;
+    }
 
-        for (int i = startPosition; i < chatMessages.size(); i++) {
-            lastMessages.add(chatMessages.get(i));
+    /**
+     * Returns the entry showing the same ad as the given one, null if there is none.
+     */
+    public synchronized AdEntry findSameAd(AdEntry entry) {
+        for (int i = chatMessages.size() - 1; i >= 0; i--) {
+            ChatEntry message = chatMessages.get(i);
+            if (message instanceof AdEntry && ((AdEntry)message).isSameAd(entry)) {
+                return (AdEntry)message;
+            }
         }
+        return null;
+    }
 
-        return lastMessages;
+    public synchronized boolean isLastMessage(ChatEntry entry) {
+        return !chatMessages.isEmpty() && chatMessages.get(chatMessages.size() - 1) == entry;
+    }
+
+    // Entries are compared by identity, equal entries might have been written at the same time.
+    private int indexOf(ChatEntry entry) {
+        for (int i = chatMessages.size() - 1; i >= 0; i--) {
+            if (chatMessages.get(i) == entry) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     public boolean chatChangedSince(Date date) {
-        return chatMessages.get(chatMessages.size() - 1).getDate().after(date);
+        return chatMessages.get(chatMessages.size() - 1).getTime() > date.getTime();
     }
 
     protected void setTypingStatus(String typingStatus) {
@@ -207,17 +272,62 @@ public class Chatroom {
 
     public boolean getIsTypingPaused() {return isTypingPaused;}
 
-    protected void addMessage(ChatEntry entry) {
+    protected synchronized void addMessage(ChatEntry entry) {
         chatMessages.add(entry);
+        recentMessages++;
     }
 
-    protected void addChat(ChatEntry entry) {
+    protected synchronized void addChat(ChatEntry entry) {
+        entry.setExportable(true);
         chatMessages.add(entry);
-        exportableChatMessages.add(entry);
+        recentMessages++;
     }
 
-    protected void addStatus(ChatEntry entry) {
+    protected synchronized void addStatus(ChatEntry entry) {
         chatMessages.add(entry);
+        recentMessages++;
+    }
+
+    /**
+     * Adds entries loaded from the history in front of the messages, oldest first.
+     */
+    public synchronized void addOlderMessages(List<ChatEntry> entries) {
+        chatMessages.addAllFirst(entries);
+    }
+
+    /**
+     * Oldest message in memory, null if there is none.
+     */
+    public synchronized ChatEntry getFirstMessage() {
+        return chatMessages.isEmpty() ? null : chatMessages.get(0);
+    }
+
+    /**
+     * True if the oldest messages were dropped from memory since the last call, they have to be read from the
+     * history again.
+     */
+    public synchronized boolean takeDroppedMessages() {
+        return chatMessages.takeDropped();
+    }
+
+    public synchronized int getCapacity() {
+        return chatMessages.getCapacity();
+    }
+
+    /**
+     * Sets the number of messages kept in memory, older ones are dropped.
+     */
+    public synchronized void setCapacity(int capacity) {
+        chatMessages.setCapacity(capacity);
+    }
+
+    /**
+     * Messages added since the last call.
+     */
+    public synchronized int takeRecentMessages() {
+        int result = recentMessages;
+        recentMessages = 0;
+        return result;
     }
 
     /**
@@ -254,7 +364,7 @@ public class Chatroom {
         int lastDisplayedMessagePosition = Math.max(0, chatMessages.size() - getMaximumEntries());
 
         for (int i = chatMessages.size() - 1; i >= lastDisplayedMessagePosition; i--) {
-            if (chatMessages.get(i).getDate().getTime() > time) {
+            if (chatMessages.get(i).getTime() > time) {
                 messages.add(chatMessages.get(i));
             } else {
                 break;
@@ -279,11 +389,28 @@ public class Chatroom {
         return chatMessages;
     }
 
-    public List<ChatEntry> getExportableChatHistory() {
-        return exportableChatMessages;
+    /**
+     * Chat written in this session still in memory, a copy. See {@link #getDroppedChatTime()} for the rest.
+     */
+    public synchronized List<ChatEntry> getExportableChatHistory() {
+        List<ChatEntry> exportable = new ArrayList<ChatEntry>();
+        for (ChatEntry entry : chatMessages) {
+            if (entry.isExportable()) {
+                exportable.add(entry);
+            }
+        }
+        return exportable;
+    }
+
+    /**
+     * Time of the oldest chat written in this session that was dropped from memory, Long.MAX_VALUE if none was.
+     * Dropped chat ends before the first entry of {@link #getExportableChatHistory()}, it is only kept in the history.
+     */
+    public synchronized long getDroppedChatTime() {
+        return chatMessages.getDroppedChatTime();
     }
 
-    public void setChatHistory(List<ChatEntry> chatHistory) {
+    public synchronized void setChatHistory(ChatEntryBuffer chatHistory) {
         chatMessages = chatHistory;
     }
 
@@ -26,10 +26,13 @@ import java.util.Set;
 import roboguice.util.Ln;
 
 import com.andfchat.core.data.history.HistoryManager;
+import com.andfchat.core.data.messages.AdEntry;
 import com.andfchat.core.data.messages.ChatEntry;
+import com.andfchat.core.data.messages.ChatEntryRenderer;
 import com.andfchat.frontend.events.AndFChatEventManager;
 import com.andfchat.frontend.events.ChatroomEventListener.ChatroomEventType;
 import com.andfchat.frontend.events.UserEventListener.UserEventType;
+import com.andfchat.frontend.util.ImageLoader;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -42,9 +45,12 @@ public class ChatroomManager {
     private HistoryManager historyManager;
     @Inject
     private SessionData sessionData;
+    @Inject
+    private ChatEntryRenderer entryRenderer;
 
     private final ArrayList<Chatroom> chats = new ArrayList<Chatroom>();
     private Chatroom activeChat;
+    private final EntryBudget entryBudget = new EntryBudget();
 
     // List of channels
     private final Set<String> officialChannelSet = new HashSet<String>();
@@ -59,6 +65,7 @@ public class ChatroomManager {
         }
 
         if (activeChat != null && entry != null) {
+            entryRenderer.render(entry);
             eventManager.fire(entry, activeChat);
         }
     }
@@ -78,13 +85,14 @@ public class ChatroomManager {
             Ln.d("Add chatroom '" + chatroom.getName() + "'");
             // Only load history for channel/pm's
             if (!chatroom.isSystemChat()) {
-                // HistoryManager loads data via the "channel" key.
-                chatroom.setChatHistory(historyManager.loadHistory(chatroom.getChannel()));
+                // HistoryManager loads data via the "channel" key, recent entries follow in the background.
+                historyManager.openHistory(chatroom);
             }
             chats.add(chatroom);
             if (chats.size() == 1) {
                 setActiveChat(chatroom);
             }
+            entryBudget.share(chats, activeChat);
         }
         return chatroom;
     }
@@ -95,6 +103,9 @@ public class ChatroomManager {
                 Chatroom chatRoom = chats.get(i);
                 if  (chatRoom.isChannel(channel)) {
                     chats.remove(i);
+                    entryRenderer.roomClosed(chatRoom);
+                    // Kept for reopening, older entries are read from the history again
+                    chatRoom.setCapacity(chatRoom.getMaximumEntries());
                     break;
                 }
             }
@@ -102,6 +113,7 @@ public class ChatroomManager {
             if (activeChat != null && activeChat.isChannel(channel)) {
                 activeChat = null;
             }
+            entryBudget.share(chats, activeChat);
 
         }
     }
@@ -122,6 +134,8 @@ public class ChatroomManager {
             }
 
             activeChat = chatroom;
+            entryBudget.share(chats, activeChat);
+            entryRenderer.roomOpened(chatroom);
             activeChat.setHasNewMessage(false);
             activeChat.setHasNewStatus(false);
             // Inform about active chat change
@@ -138,10 +152,26 @@ public class ChatroomManager {
             return;
         }
 
+        if (entry instanceof AdEntry && sessionData.getSessionSettings().collapseRepeatedAds()) {
+            AdEntry shown = chatroom.findSameAd((AdEntry)entry);
+            if (shown != null) {
+                // Shown again with the count of reposts
+                shown.addRepost();
+                entryRenderer.entryAdded(chatroom, shown);
+                eventManager.fireChanged(shown, chatroom);
+                return;
+            }
+        }
+
         chatroom.addMessage(entry);
+        entryAdded();
+        entryRenderer.entryAdded(chatroom, entry);
         eventManager.fire(entry, chatroom);
 
         entry.setOwned(sessionData.isUser(entry.getOwner()));
+        if (!chatroom.isSystemChat()) {
+            historyManager.addEntry(chatroom.getChannel(), entry);
+        }
 
         if (!chatroom.hasNewMessage() && !isActiveChat(chatroom)) {
             chatroom.setHasNewMessage(true);
@@ -159,9 +189,14 @@ public class ChatroomManager {
         }
 
         chatroom.addChat(entry);
+        entryAdded();
+        entryRenderer.entryAdded(chatroom, entry);
         eventManager.fire(entry, chatroom);
 
         entry.setOwned(sessionData.isUser(entry.getOwner()));
+        if (!chatroom.isSystemChat()) {
+            historyManager.addEntry(chatroom.getChannel(), entry);
+        }
 
         if (!chatroom.hasNewMessage() && !isActiveChat(chatroom)) {
             chatroom.setHasNewMessage(true);
@@ -192,6 +227,8 @@ public class ChatroomManager {
         }
 
         chatroom.addStatus(entry);
+        entryAdded();
+        entryRenderer.entryAdded(chatroom, entry);
         eventManager.fire(entry, chatroom);
 
         entry.setOwned(sessionData.isUser(entry.getOwner()));
@@ -202,6 +239,26 @@ public class ChatroomManager {
         }
     }
 
+    /**
+     * Shrinks the memory used by chatrooms according to the level given by
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        synchronized(this) {
+            if (entryBudget.onTrimMemory(level)) {
+                entryBudget.share(chats, activeChat);
+            }
+        }
+    }
+
+    private void entryAdded() {
+        if (entryBudget.entryAdded()) {
+            synchronized(this) {
+                entryBudget.share(chats, activeChat);
+            }
+        }
+    }
+
     public boolean hasOpenPrivateConversation(FCharacter flistChar) {
         for (Chatroom chat : chats) {
             if (chat.getRecipient() != null && chat.getRecipient().equals(flistChar)) {
@@ -292,6 +349,9 @@ public class ChatroomManager {
     }
 
     public void clear() {
+        entryRenderer.clear();
+        ChatEntry.getRenderCache().clear();
+        ImageLoader.clear();
         this.activeChat = null;
         this.chats.clear();
         this.officialChannelSet.clear();
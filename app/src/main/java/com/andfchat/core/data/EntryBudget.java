@@ -0,0 +1,132 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data;
+
+import java.util.List;
+
+import roboguice.util.Ln;
+import android.content.ComponentCallbacks2;
+
+/**
+ * Memory for chat entries shared by the open chatrooms. Every chatroom gets a part of the budget by its type and the
+ * messages it got recently, the active one twice as much. Under memory pressure the budget shrinks, it grows back
+ * once the pressure is gone. Entries beyond the part of a chatroom are dropped, those kept in the history are read
+ * from disk again when scrolled to.
+ * @author AndFChat
+ */
+public class EntryBudget {
+
+    // Rough size of an entry with its text
+    private final static int ENTRY_SIZE = 256;
+    private final static long MAX_BUDGET = 16 * 1024 * 1024;
+    // Entries a chatroom keeps at least, enough to fill the chat window
+    private final static int MIN_ENTRIES = 300;
+    // Entries added between sharing the budget again
+    private final static int SHARE_INTERVAL = 500;
+    // Time without memory pressure until the budget grows again
+    private final static long RELAX_TIME = 5 * 60 * 1000;
+
+    private final int totalEntries;
+
+    // Budget is divided by this under memory pressure
+    private int divisor = 1;
+    private long lastPressure = 0;
+    private int added = 0;
+
+    public EntryBudget() {
+        this(Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_BUDGET));
+    }
+
+    public EntryBudget(long bytes) {
+        totalEntries = (int)(bytes / ENTRY_SIZE);
+    }
+
+    /**
+     * Counts an added entry, true if the budget should be shared again.
+     */
+    public synchronized boolean entryAdded() {
+        added++;
+        if (added >= SHARE_INTERVAL) {
+            added = 0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Shrinks the budget according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)},
+     * true if it changed.
+     */
+    public synchronized boolean onTrimMemory(int level) {
+        int newDivisor = divisor;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            newDivisor = 8;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            newDivisor = Math.max(divisor, 2);
+        } else {
+            return false;
+        }
+
+        lastPressure = System.currentTimeMillis();
+        boolean changed = newDivisor != divisor;
+        divisor = newDivisor;
+        return changed;
+    }
+
+    /**
+     * Sets the capacity of the chatrooms to their part of the budget.
+     */
+    public void share(List<Chatroom> chatrooms, Chatroom activeChat) {
+        int budget;
+        boolean pressure;
+        synchronized(this) {
+            if (divisor > 1 && System.currentTimeMillis() - lastPressure > RELAX_TIME) {
+                divisor /= 2;
+                lastPressure = System.currentTimeMillis();
+            }
+            budget = totalEntries / divisor;
+            pressure = divisor > 1;
+        }
+
+        long[] weights = new long[chatrooms.size()];
+        long totalWeight = 0;
+        for (int i = 0; i < chatrooms.size(); i++) {
+            Chatroom chatroom = chatrooms.get(i);
+            weights[i] = chatroom.getChatroomType().maxEntries + chatroom.takeRecentMessages();
+            if (chatroom == activeChat) {
+                weights[i] *= 2;
+            }
+            totalWeight += weights[i];
+        }
+
+        for (int i = 0; i < chatrooms.size(); i++) {
+            Chatroom chatroom = chatrooms.get(i);
+            // Under pressure only what is shown is kept
+            int minimum = pressure ? chatroom.getChatroomType().maxEntries : MIN_ENTRIES;
+            int capacity = Math.max(minimum, (int)(budget * weights[i] / totalWeight));
+            if (chatroom == activeChat && !pressure) {
+                // Entries loaded by scrolling back are kept while reading
+                capacity = Math.max(capacity, chatroom.getCapacity());
+            }
+            chatroom.setCapacity(capacity);
+        }
+
+        Ln.d("Shared entry budget of " + budget + " among " + chatrooms.size() + " chatrooms");
+    }
+}
@@ -20,6 +20,7 @@ package com.andfchat.core.data;
 
 public enum PropertyName {
     SHOW_CHANNEL_INFO,
+    COLLAPSE_REPEATED_ADS,
     SHOW_USER_STATUS_CHANGES,
     USE_DEBUG_CHANNEL,
     VIBRATION_FEEDBACK,
@@ -28,6 +29,9 @@ public enum PropertyName {
     INITIAL_PRIVATE_CHANNELS,
     LOG_HISTORY,
     LOG_CHANNEL,
+    HISTORY_RETENTION_PUBLIC_CHANNEL,
+    HISTORY_RETENTION_PRIVATE_CHANNEL,
+    HISTORY_RETENTION_PRIVATE_CHAT,
     THEME,
     CHAT_TEXT_SIZE,
     VERSION,
@@ -29,6 +29,8 @@ import android.preference.PreferenceManager;
 
 import com.andfchat.R;
 import com.andfchat.core.connection.handler.VariableHandler.Variable;
+import com.andfchat.core.data.Chatroom.ChatroomType;
+import com.andfchat.core.data.history.HistoryRetention;
 import com.andfchat.core.util.Version;
 import com.andfchat.frontend.application.AndFChatNotification;
 import com.andfchat.frontend.util.TextSize;
@@ -201,6 +203,10 @@ public class SessionData {
             return preferences.getBoolean(PropertyName.SHOW_CHANNEL_INFO.name().toLowerCase(), false);
         }
 
+        public boolean collapseRepeatedAds() {
+            return preferences.getBoolean(PropertyName.COLLAPSE_REPEATED_ADS.name().toLowerCase(), false);
+        }
+
         public boolean vibrationFeedback() {
             return preferences.getBoolean(PropertyName.VIBRATION_FEEDBACK.name().toLowerCase(), false);
         }
@@ -225,6 +231,27 @@ public class SessionData {
             return preferences.getBoolean(PropertyName.LOG_CHANNEL.name().toLowerCase(), true);
         }
 
+        /**
+         * How much history of the type of chat is kept, null for everything.
+         */
+        public HistoryRetention getHistoryRetention(ChatroomType type) {
+            PropertyName property;
+            switch (type) {
+                case PUBLIC_CHANNEL:
+                    property = PropertyName.HISTORY_RETENTION_PUBLIC_CHANNEL;
+                    break;
+                case PRIVATE_CHANNEL:
+                    property = PropertyName.HISTORY_RETENTION_PRIVATE_CHANNEL;
+                    break;
+                case PRIVATE_CHAT:
+                    property = PropertyName.HISTORY_RETENTION_PRIVATE_CHAT;
+                    break;
+                default:
+                    return null;
+            }
+            return HistoryRetention.parse(preferences.getString(property.name().toLowerCase(), "forever"));
+        }
+
         public boolean showNotifications() {
             return preferences.getBoolean(PropertyName.SHOW_NOTIFICATIONS.name().toLowerCase(), true);
         }
@@ -0,0 +1,398 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.andfchat.core.data.FCharacter;
+
+/**
+ * Index of a sealed segment. Once full, a segment is rewritten as header followed by its records compressed in
+ * independent Deflate blocks of about {@link #BLOCK_SIZE}, and a footer: all authors of the segment, first time, start
+ * and file offset of every block, the CRC32 of the footer and the offset it starts at.
+ * <p>
+ * Records keep the offsets they had before the segment was sealed, so positions stay valid. Every block can be read
+ * on its own, the authors of all records are known from the footer.
+ *
+ * @author AndFChat
+ */
+public class BlockIndex {
+
+    // Uncompressed size a block is closed at
+    public final static int BLOCK_SIZE = 64 * 1024;
+
+    // Offset, CRC32 of the footer
+    private final static int TRAILER_SIZE = 8;
+
+    private final long baseTime;
+    private final List<FCharacter> authors;
+    // First time of the entries of every block
+    private final long[] times;
+    // Offset of the first record of every block, followed by the end of the last one
+    private final long[] starts;
+    // Position of every block in the file, followed by the start of the footer
+    private final long[] offsets;
+
+    private BlockIndex(long baseTime, List<FCharacter> authors, long[] times, long[] starts, long[] offsets) {
+        this.baseTime = baseTime;
+        this.authors = authors;
+        this.times = times;
+        this.starts = starts;
+        this.offsets = offsets;
+    }
+
+    public int getBlockCount() {
+        return times.length;
+    }
+
+    public long getStart(int block) {
+        return starts[block];
+    }
+
+    /**
+     * Offset after the last record of the segment.
+     */
+    public long getEnd() {
+        return starts[times.length];
+    }
+
+    public long getFirstTime(int block) {
+        return times[block];
+    }
+
+    /**
+     * The block containing the record at the offset.
+     */
+    public int findBlock(long offset) {
+        return findLast(starts, times.length, offset);
+    }
+
+    /**
+     * The last block starting at or before the time, the first entry of the time is in it or the one after.
+     */
+    public int findBlockByTime(long time) {
+        return findLast(times, times.length, time);
+    }
+
+    /**
+     * Context to decode records of any block with.
+     */
+    public HistoryFormat.SegmentContext createContext() {
+        HistoryFormat.SegmentContext context = new HistoryFormat.SegmentContext(HistoryFormat.VERSION_BLOCKS, baseTime);
+        for (FCharacter author : authors) {
+            context.addAuthor(author);
+        }
+        return context;
+    }
+
+    /**
+     * Reads and decompresses the records of the block.
+     */
+    public byte[] readBlock(File segment, int block) throws IOException {
+        byte[] compressed = new byte[(int)(offsets[block + 1] - offsets[block])];
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            file.seek(offsets[block]);
+            file.readFully(compressed);
+        } finally {
+            file.close();
+        }
+
+        byte[] records = new byte[(int)(starts[block + 1] - starts[block])];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int length = inflater.inflate(records);
+            if (length != records.length || !inflater.finished()) {
+                throw new IOException("Block " + block + " of " + segment + " is damaged");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Block " + block + " of " + segment + " is damaged: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return records;
+    }
+
+    /**
+     * Reads the index of a sealed segment.
+     */
+    public static BlockIndex read(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            HistoryFormat.SegmentContext context = HistoryFormat.readHeader(file);
+            if (context.version != HistoryFormat.VERSION_BLOCKS) {
+                throw new IOException(segment + " isn't sealed");
+            }
+
+            long length = file.length();
+            if (length < context.getHeaderSize() + TRAILER_SIZE) {
+                throw new IOException(segment + " has no footer");
+            }
+
+            file.seek(length - TRAILER_SIZE);
+            int checksum = file.readInt();
+            long footerOffset = file.readInt() & 0xFFFFFFFFL;
+            if (footerOffset < context.getHeaderSize() || footerOffset > length - TRAILER_SIZE) {
+                throw new IOException("Invalid footer offset: " + footerOffset);
+            }
+
+            byte[] footer = new byte[(int)(length - TRAILER_SIZE - footerOffset)];
+            file.seek(footerOffset);
+            file.readFully(footer);
+            if (checksum != HistoryFormat.checksum(footer, 0, footer.length)) {
+                throw new IOException("Footer checksum mismatch");
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+            int authorCount = in.readInt();
+            if (authorCount < 0 || authorCount > footer.length) {
+                throw new IOException("Invalid author count: " + authorCount);
+            }
+            List<FCharacter> authors = new ArrayList<FCharacter>(authorCount);
+            for (int i = 0; i < authorCount; i++) {
+                String name = in.readUTF();
+                authors.add(new FCharacter(name, HistoryFormat.getGender(in.readByte())));
+            }
+
+            int blockCount = in.readInt();
+            if (blockCount < 0 || blockCount > footer.length) {
+                throw new IOException("Invalid block count: " + blockCount);
+            }
+            long[] times = new long[blockCount];
+            long[] starts = new long[blockCount + 1];
+            long[] offsets = new long[blockCount + 1];
+            for (int i = 0; i < blockCount; i++) {
+                times[i] = in.readLong();
+                starts[i] = in.readInt();
+                offsets[i] = in.readInt();
+            }
+            starts[blockCount] = in.readInt();
+            offsets[blockCount] = footerOffset;
+
+            return new BlockIndex(context.baseTime, authors, times, starts, offsets);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the records of a raw segment compressed to target. Records after a damaged one are dropped.
+     */
+    public static void seal(File segment, File target) throws IOException {
+        byte[] raw = new byte[(int)segment.length()];
+        DataInputStream rawIn = new DataInputStream(new FileInputStream(segment));
+        try {
+            rawIn.readFully(raw);
+        } finally {
+            rawIn.close();
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        HistoryFormat.SegmentContext context = HistoryFormat.readHeader(in);
+        if (context.version != HistoryFormat.VERSION) {
+            throw new IOException("Can't seal segments of version " + context.version);
+        }
+
+        List<Long> times = new ArrayList<Long>();
+        List<Long> starts = new ArrayList<Long>();
+        List<Long> offsets = new ArrayList<Long>();
+
+        FileOutputStream fileStream = new FileOutputStream(target);
+        Deflater deflater = new Deflater();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 16384));
+            HistoryFormat.writeHeader(out, new HistoryFormat.SegmentContext(HistoryFormat.VERSION_BLOCKS, context.baseTime));
+
+            long offset = context.getHeaderSize();
+            long blockStart = offset;
+            byte[] buffer = new byte[16384];
+
+            while (true) {
+                byte[] record;
+                try {
+                    record = HistoryFormat.readRecord(in, context);
+                    if (record != null) {
+                        long time = HistoryFormat.decode(record, context).getTime();
+                        if (offset == blockStart) {
+                            times.add(time);
+                        }
+                        offset += context.getPrefixSize() + record.length;
+                    }
+                } catch (IOException e) {
+                    record = null;
+                }
+
+                if (offset > blockStart && (record == null || offset - blockStart >= BLOCK_SIZE)) {
+                    starts.add(blockStart);
+                    offsets.add((long)out.size());
+
+                    compress(deflater, raw, (int)blockStart, (int)(offset - blockStart), out, buffer);
+                    blockStart = offset;
+                }
+
+                if (record == null) {
+                    break;
+                }
+            }
+
+            writeFooter(out, context.getAuthors(), times, starts, offsets, offset);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            deflater.end();
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Writes the segment without the records before offset to target, the records after keep their offsets.
+     * Blocks before the offset are dropped, the block containing it is compressed again from there on.
+     */
+    public void cut(File segment, long offset, File target) throws IOException {
+        int first = findBlock(offset);
+        if (offset < starts[first] || offset >= getEnd()) {
+            throw new IOException("Can't cut " + segment + " at " + offset);
+        }
+
+        List<Long> keptTimes = new ArrayList<Long>();
+        List<Long> keptStarts = new ArrayList<Long>();
+        List<Long> keptOffsets = new ArrayList<Long>();
+
+        FileOutputStream fileStream = new FileOutputStream(target);
+        Deflater deflater = new Deflater();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 16384));
+            HistoryFormat.writeHeader(out, new HistoryFormat.SegmentContext(HistoryFormat.VERSION_BLOCKS, baseTime));
+
+            int copyFrom = first;
+            if (offset > starts[first]) {
+                byte[] records = readBlock(segment, first);
+                int skipped = (int)(offset - starts[first]);
+
+                // Time of the new first record
+                HistoryFormat.SegmentContext context = createContext();
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(records, skipped, records.length - skipped));
+                byte[] record = HistoryFormat.readRecord(in, context);
+                if (record == null) {
+                    throw new IOException("No record at " + offset + " of " + segment);
+                }
+
+                keptTimes.add(HistoryFormat.decode(record, context).getTime());
+                keptStarts.add(offset);
+                keptOffsets.add((long)out.size());
+                compress(deflater, records, skipped, records.length - skipped, out, new byte[16384]);
+                copyFrom++;
+            }
+
+            // Following blocks are copied as they are
+            long shift = out.size() - offsets[copyFrom];
+            for (int block = copyFrom; block < times.length; block++) {
+                keptTimes.add(times[block]);
+                keptStarts.add(starts[block]);
+                keptOffsets.add(offsets[block] + shift);
+            }
+            if (copyFrom < times.length) {
+                byte[] compressed = new byte[(int)(offsets[times.length] - offsets[copyFrom])];
+                RandomAccessFile file = new RandomAccessFile(segment, "r");
+                try {
+                    file.seek(offsets[copyFrom]);
+                    file.readFully(compressed);
+                } finally {
+                    file.close();
+                }
+                out.write(compressed);
+            }
+
+            writeFooter(out, authors, keptTimes, keptStarts, keptOffsets, getEnd());
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            deflater.end();
+            fileStream.close();
+        }
+    }
+
+    private static void compress(Deflater deflater, byte[] data, int offset, int length, DataOutputStream out, byte[] buffer) throws IOException {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+    }
+
+    private static void writeFooter(DataOutputStream out, List<FCharacter> authors, List<Long> times, List<Long> starts,
+            List<Long> offsets, long end) throws IOException {
+        ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+        DataOutputStream footer = new DataOutputStream(footerBytes);
+        footer.writeInt(authors.size());
+        for (FCharacter author : authors) {
+            footer.writeUTF(author.getName());
+            footer.writeByte(author.getGender().ordinal());
+        }
+        footer.writeInt(times.size());
+        for (int i = 0; i < times.size(); i++) {
+            footer.writeLong(times.get(i));
+            footer.writeInt(starts.get(i).intValue());
+            footer.writeInt(offsets.get(i).intValue());
+        }
+        footer.writeInt((int)end);
+        footer.close();
+
+        byte[] footerData = footerBytes.toByteArray();
+        int footerOffset = out.size();
+        out.write(footerData);
+        out.writeInt(HistoryFormat.checksum(footerData, 0, footerData.length));
+        out.writeInt(footerOffset);
+    }
+
+    /**
+     * Index of the last of the first count values at or below value, 0 if there is none.
+     */
+    private static int findLast(long[] values, int count, long value) {
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= value) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+}
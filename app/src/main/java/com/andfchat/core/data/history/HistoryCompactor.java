@@ -0,0 +1,116 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.File;
+import java.util.Map;
+
+import roboguice.util.Ln;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.Chatroom.ChatroomType;
+
+/**
+ * Drops the history past the retention of its type of chat, whole segments at once where possible. The segment
+ * written to is never changed, so a channel keeps up to a segment more than its retention.
+ *
+ * @author AndFChat
+ */
+public class HistoryCompactor {
+
+    private final static long DAY = 24 * 60 * 60 * 1000L;
+
+    private final HistoryLog log;
+    private final HistoryIndex index;
+
+    /**
+     * @param index the search index of the log, null if there is none
+     */
+    public HistoryCompactor(HistoryLog log, HistoryIndex index) {
+        this.log = log;
+        this.index = index;
+    }
+
+    /**
+     * Applies the retentions by type of chat to all channels, types without one are kept as they are.
+     * Reads and rewrites segments, must not be called from the ui thread.
+     */
+    public void compact(Map<ChatroomType, HistoryRetention> retentions) {
+        if (retentions.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        long freed = 0;
+        int truncated = 0;
+
+        for (Channel channel : log.getChannels()) {
+            HistoryRetention retention = retentions.get(channel.getType());
+            if (retention == null) {
+                continue;
+            }
+
+            HistoryLog.Position first = getFirstKept(channel, retention, start);
+            if (first == null) {
+                continue;
+            }
+
+            long size = log.getSize(channel);
+            HistoryLog.Position dropped = log.truncate(channel, first);
+            if (dropped != null) {
+                if (index != null) {
+                    index.remove(channel, dropped);
+                }
+                freed += size - log.getSize(channel);
+                truncated++;
+            }
+        }
+
+        if (truncated > 0 && index != null) {
+            index.save();
+        }
+        Ln.d("History compacted in " + (System.currentTimeMillis() - start) + "ms, " + truncated + " channels truncated, "
+                + freed + " bytes freed");
+    }
+
+    /**
+     * Position of the oldest entry to keep, null if all are kept.
+     */
+    private HistoryLog.Position getFirstKept(Channel channel, HistoryRetention retention, long now) {
+        switch (retention.unit) {
+            case DAYS:
+                return log.find(channel, now - retention.amount * DAY);
+            case ENTRIES:
+                return log.findBack(channel, (int)Math.min(retention.amount, Integer.MAX_VALUE));
+            case BYTES:
+                // The newest segments fitting in
+                File[] segments = log.getSegments(channel);
+                long size = 0;
+                for (int i = segments.length - 1; i >= 0; i--) {
+                    size += segments[i].length();
+                    if (size > retention.amount) {
+                        return i + 1 < segments.length ? new HistoryLog.Position(HistoryLog.getSegmentNumber(segments[i + 1]), 0) : null;
+                    }
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.andfchat.core.data.FCharacter;
+import com.andfchat.core.data.Gender;
+import com.andfchat.core.data.messages.ChatEntry;
+import com.andfchat.core.data.messages.ChatEntry.MessageType;
+import com.andfchat.core.data.messages.EmoteEntry;
+import com.andfchat.core.data.messages.MessageEntry;
+
+/**
+ * Binary format of history segments. A segment starts with a header (magic number, version, base time as long)
+ * followed by records, every record is its length as int and the CRC32 of the encoded entry as int, followed by the
+ * entry: type (byte), flags (byte), time as difference to the base time (variable length), author id (variable length),
+ * text length (variable length), text (UTF-8).
+ * Authors get ids in the order they first appear in a segment, the id in that record is followed by name (UTF) and
+ * gender (byte) of the author. Reading a record needs the authors of the records before, see {@link SegmentContext}.
+ * <p>
+ * Full segments are sealed into compressed blocks, see {@link BlockIndex}.
+ * <p>
+ * Segments of version 1 have no checksums, segments of version 1 and 2 store the author with every entry and
+ * the time as long. Both are still read.
+ *
+ * @author AndFChat
+ */
+public class HistoryFormat {
+
+    // "AFCH"
+    public final static int MAGIC = 0x41464348;
+    public final static byte VERSION = 3;
+    // Segments of this version have no checksums
+    public final static byte VERSION_UNCHECKED = 1;
+    // Segments of this version store every author and time in full
+    public final static byte VERSION_NO_DICTIONARY = 2;
+    // Sealed segments, records compressed in blocks, see BlockIndex
+    public final static byte VERSION_BLOCKS = 4;
+    // Length and checksum in front of every record
+    public final static int PREFIX_SIZE = 8;
+
+    // Records above this size are treated as corrupted
+    public final static int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final static int FLAG_OWNED = 1;
+    // The author is defined by this record
+    private final static int FLAG_NEW_AUTHOR = 2;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Authors and base time of a segment, built while writing or reading its records in order.
+     */
+    public static class SegmentContext {
+        public final byte version;
+        public final long baseTime;
+
+        private final List<FCharacter> authors = new ArrayList<FCharacter>();
+        private final Map<String, Integer> authorIds = new HashMap<String, Integer>();
+
+        public SegmentContext(byte version, long baseTime) {
+            this.version = version;
+            this.baseTime = baseTime;
+        }
+
+        public int getHeaderSize() {
+            return hasDictionary() ? 13 : 5;
+        }
+
+        public int getPrefixSize() {
+            return version == VERSION_UNCHECKED ? 4 : PREFIX_SIZE;
+        }
+
+        public boolean hasDictionary() {
+            return version == VERSION || version == VERSION_BLOCKS;
+        }
+
+        public List<FCharacter> getAuthors() {
+            return authors;
+        }
+
+        void addAuthor(FCharacter author) {
+            authorIds.put(author.getName(), authors.size());
+            authors.add(author);
+        }
+    }
+
+    /**
+     * True if the entry is kept in the history, only messages and emotes are.
+     */
+    public static boolean isStored(ChatEntry entry) {
+        return entry.getMessageType() == MessageType.MESSAGE || entry.getMessageType() == MessageType.EMOTE;
+    }
+
+    /**
+     * Text of the entry as written by its owner, null if the entry isn't kept in the history.
+     */
+    public static String getText(ChatEntry entry) {
+        if (entry instanceof MessageEntry) {
+            return ((MessageEntry)entry).getRawText();
+        } else if (entry instanceof EmoteEntry) {
+            return ((EmoteEntry)entry).getRawText();
+        }
+        return null;
+    }
+
+    /**
+     * Context of a new segment, times are stored relative to the given one.
+     */
+    public static SegmentContext createSegment(long baseTime) {
+        return new SegmentContext(VERSION, baseTime);
+    }
+
+    public static void writeHeader(DataOutput out, SegmentContext context) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(context.version);
+        out.writeLong(context.baseTime);
+    }
+
+    /**
+     * Reads the header and returns the context for the records of the segment.
+     */
+    public static SegmentContext readHeader(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a history segment!");
+        }
+
+        byte version = in.readByte();
+        if (version == VERSION || version == VERSION_BLOCKS) {
+            return new SegmentContext(version, in.readLong());
+        } else if (version == VERSION_UNCHECKED || version == VERSION_NO_DICTIONARY) {
+            return new SegmentContext(version, 0);
+        }
+        throw new IOException("Unsupported history version: " + version);
+    }
+
+    /**
+     * Reads the next record of a segment, without its prefix. Returns null at the end of the segment, throws if the
+     * record is torn or damaged.
+     */
+    public static byte[] readRecord(DataInput in, SegmentContext context) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length <= 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("Invalid record length: " + length);
+        }
+
+        boolean checked = context.version != VERSION_UNCHECKED;
+        int checksum = checked ? in.readInt() : 0;
+        byte[] record = new byte[length];
+        in.readFully(record);
+
+        if (checked && checksum != checksum(record, 0, length)) {
+            throw new IOException("Checksum mismatch");
+        }
+        return record;
+    }
+
+    /**
+     * Encodes the entry as record of the segment, including the prefix. New authors are added to the context, so
+     * the record has to be written or the context dropped.
+     */
+    public static byte[] encode(ChatEntry entry, SegmentContext context) throws IOException {
+        String text = getText(entry);
+        if (text == null) {
+            throw new IOException("Entry of type " + entry.getMessageType() + " can't be stored!");
+        }
+        if (context.version != VERSION) {
+            throw new IOException("Can't write to segments of version " + context.version);
+        }
+
+        byte[] textBytes = text.getBytes(UTF_8);
+        FCharacter owner = entry.getOwner();
+        Integer authorId = context.authorIds.get(owner.getName());
+
+        int flags = entry.isOwned() ? FLAG_OWNED : 0;
+        if (authorId == null) {
+            flags |= FLAG_NEW_AUTHOR;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(textBytes.length + 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // Placeholder for length and checksum
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(entry.getMessageType().ordinal());
+        out.writeByte(flags);
+        writeVarLong(out, zigZag(entry.getTime() - context.baseTime));
+
+        if (authorId != null) {
+            writeVarLong(out, authorId);
+        } else {
+            // First appearance, defines the id
+            writeVarLong(out, context.authors.size());
+            out.writeUTF(owner.getName());
+            out.writeByte(owner.getGender().ordinal());
+            context.addAuthor(new FCharacter(owner.getName(), owner.getGender()));
+        }
+
+        writeVarLong(out, textBytes.length);
+        out.write(textBytes);
+        out.close();
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - PREFIX_SIZE;
+        writeInt(record, 0, length);
+        writeInt(record, 4, checksum(record, PREFIX_SIZE, length));
+
+        return record;
+    }
+
+    /**
+     * Decodes the record without its prefix. Records have to be decoded in order, authors defined are added to the
+     * context.
+     */
+    public static ChatEntry decode(byte[] record, SegmentContext context) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (!context.hasDictionary()) {
+            return decodeWithoutDictionary(in, record.length);
+        }
+
+        int typeOrdinal = in.readByte();
+        int flags = in.readByte();
+        long time = context.baseTime + unZigZag(readVarLong(in));
+
+        long authorId = readVarLong(in);
+        FCharacter owner;
+        if ((flags & FLAG_NEW_AUTHOR) != 0) {
+            String name = in.readUTF();
+            Gender gender = getGender(in.readByte());
+            if (authorId == context.authors.size()) {
+                owner = new FCharacter(name, gender);
+                context.addAuthor(owner);
+            } else if (authorId < context.authors.size()) {
+                // Defined before, the record was read already
+                owner = context.authors.get((int)authorId);
+            } else {
+                throw new IOException("Author defined out of order: " + authorId);
+            }
+        } else if (authorId < context.authors.size()) {
+            owner = context.authors.get((int)authorId);
+        } else {
+            throw new IOException("Unknown author: " + authorId);
+        }
+
+        long textLength = readVarLong(in);
+        if (textLength < 0 || textLength > record.length) {
+            throw new IOException("Invalid text length: " + textLength);
+        }
+        byte[] textBytes = new byte[(int)textLength];
+        in.readFully(textBytes);
+
+        return createEntry(typeOrdinal, owner, new String(textBytes, UTF_8), time, flags);
+    }
+
+    private static ChatEntry decodeWithoutDictionary(DataInputStream in, int recordLength) throws IOException {
+        int typeOrdinal = in.readByte();
+        long time = in.readLong();
+        int flags = in.readByte();
+        String name = in.readUTF();
+        int genderOrdinal = in.readByte();
+        int textLength = in.readInt();
+        if (textLength < 0 || textLength > recordLength) {
+            throw new IOException("Invalid text length: " + textLength);
+        }
+        byte[] textBytes = new byte[textLength];
+        in.readFully(textBytes);
+
+        return createEntry(typeOrdinal, new FCharacter(name, getGender(genderOrdinal)), new String(textBytes, UTF_8), time, flags);
+    }
+
+    private static ChatEntry createEntry(int typeOrdinal, FCharacter owner, String text, long time, int flags) throws IOException {
+        ChatEntry entry;
+        if (typeOrdinal == MessageType.MESSAGE.ordinal()) {
+            entry = new MessageEntry(owner, text, time);
+        } else if (typeOrdinal == MessageType.EMOTE.ordinal()) {
+            entry = new EmoteEntry(owner, text, time);
+        } else {
+            throw new IOException("Unknown entry type: " + typeOrdinal);
+        }
+
+        entry.setOwned((flags & FLAG_OWNED) != 0);
+        return entry;
+    }
+
+    static Gender getGender(int ordinal) {
+        Gender[] genders = Gender.values();
+        return ordinal >= 0 && ordinal < genders.length ? genders[ordinal] : Gender.UNKNOWN;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte part = in.readByte();
+            value |= (long)(part & 0x7F) << shift;
+            if ((part & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid number");
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int)crc.getValue();
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,592 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import roboguice.util.Ln;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.Chatroom.ChatroomType;
+import com.andfchat.core.data.messages.ChatEntry;
+
+/**
+ * Inverted index over the history of one character, maps words and authors to the entries containing them.
+ * Entries are added as they are written, the index is saved next to the history and entries written after the
+ * last save are read from disk by {@link #update()}.
+ *
+ * @author AndFChat
+ */
+public class HistoryIndex implements HistoryLog.AppendListener {
+
+    public final static String INDEX_FILE = "search.idx";
+
+    // "AFIX"
+    private final static int MAGIC = 0x41464958;
+    private final static byte VERSION = 1;
+
+    // Longer words are cut
+    private final static int MAX_TERM_LENGTH = 32;
+    // Author terms start with a character words never contain
+    private final static char AUTHOR_PREFIX = '@';
+    // Per entry: channel id, segment, offset, time in seconds
+    private final static int DOC_SIZE = 4;
+    // Channel id of entries dropped from the history
+    private final static int REMOVED = -1;
+
+    private final static Pattern BBCODE_PATTERN = Pattern.compile("\\[/?[a-zA-Z]+(=[^\\]]*)?\\]");
+
+    public static class Result {
+        public final Channel channel;
+        public final HistoryLog.Position position;
+        public final ChatEntry entry;
+
+        public Result(Channel channel, HistoryLog.Position position, ChatEntry entry) {
+            this.channel = channel;
+            this.position = position;
+            this.entry = entry;
+        }
+    }
+
+    public static class ResultPage {
+        // Found entries, newest first
+        public final List<Result> results;
+        // Cursor of the next page, -1 if there are no more results
+        public final long next;
+
+        public ResultPage(List<Result> results, long next) {
+            this.results = results;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Ascending entry numbers, stored as variable length differences.
+     */
+    private static class Postings {
+        private byte[] data;
+        private int length = 0;
+        private int count = 0;
+        private int last = -1;
+
+        private Postings(int capacity) {
+            data = new byte[capacity];
+        }
+
+        private void add(int doc) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2 + 5);
+            }
+
+            int delta = doc - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte)((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte)delta;
+
+            last = doc;
+            count++;
+        }
+
+        private int[] toArray() {
+            int[] docs = new int[count];
+            int doc = -1;
+            int position = 0;
+
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte value;
+                do {
+                    value = data[position++];
+                    delta |= (value & 0x7F) << shift;
+                    shift += 7;
+                } while ((value & 0x80) != 0);
+
+                doc += delta;
+                docs[i] = doc;
+            }
+
+            return docs;
+        }
+    }
+
+    private final HistoryLog log;
+    private final File file;
+
+    private List<Channel> channels = new ArrayList<Channel>();
+    private Map<Channel, Integer> channelIds = new HashMap<Channel, Integer>();
+    // Position of the last indexed entry, by channel id
+    private List<HistoryLog.Position> lastIndexed = new ArrayList<HistoryLog.Position>();
+
+    private int[] docs = new int[DOC_SIZE * 1024];
+    private int docCount = 0;
+    private int removedCount = 0;
+    private HashMap<String, Postings> postings = new HashMap<String, Postings>();
+
+    // Channels read from disk by update, written entries are indexed from there. Null until the update started.
+    private Set<Channel> catchingUp = null;
+    private boolean changed = false;
+
+    public HistoryIndex(HistoryLog log) {
+        this.log = log;
+        this.file = new File(log.getDirectory(), INDEX_FILE);
+    }
+
+    /**
+     * Words of the text as they are indexed, lower case and without BBCode tags.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        String plain = text.indexOf('[') != -1 ? BBCODE_PATTERN.matcher(text).replaceAll(" ") : text;
+
+        int start = -1;
+        for (int i = 0; i <= plain.length(); i++) {
+            boolean letter = i < plain.length() && Character.isLetterOrDigit(plain.charAt(i));
+            if (letter && start == -1) {
+                start = i;
+            } else if (!letter && start != -1) {
+                String token = plain.substring(start, Math.min(i, start + MAX_TERM_LENGTH));
+                tokens.add(token.toLowerCase(Locale.ENGLISH));
+                start = -1;
+            }
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Loads the saved index and adds all entries written since, takes a while on big histories.
+     */
+    public void update() {
+        long start = System.currentTimeMillis();
+        load();
+
+        List<Channel> onDisk;
+        synchronized(this) {
+            if (removedCount > docCount / 2) {
+                // Mostly dropped entries, cheaper to start over than to keep them
+                Ln.d("Rebuilding history index, " + removedCount + " of " + docCount + " entries are dropped");
+                reset();
+                changed = true;
+            }
+            onDisk = log.getChannels();
+            catchingUp = new HashSet<Channel>(onDisk);
+        }
+
+        for (final Channel channel : onDisk) {
+            HistoryLog.EntryVisitor channelIndexer = new HistoryLog.EntryVisitor() {
+                @Override
+                public void visit(HistoryLog.Position position, ChatEntry entry) {
+                    add(channel, position, entry);
+                }
+            };
+
+            log.scan(channel, getLastIndexed(channel), channelIndexer);
+            synchronized(this) {
+                // Entries written meanwhile, later ones are added as they are written
+                log.scan(channel, getLastIndexed(channel), channelIndexer);
+                catchingUp.remove(channel);
+            }
+        }
+
+        Ln.d("History index updated in " + (System.currentTimeMillis() - start) + "ms: " + getStatistics());
+    }
+
+    @Override
+    public synchronized void onAppended(Channel channel, HistoryLog.Position position, ChatEntry entry) {
+        if (catchingUp != null && !catchingUp.contains(channel)) {
+            add(channel, position, entry);
+        }
+        // Otherwise the entry is read from disk by update
+    }
+
+    /**
+     * Finds entries matching the query, newest first.
+     * @param cursor {@link ResultPage#next} of the previous page, {@link Long#MAX_VALUE} for the first page
+     */
+    public ResultPage search(HistoryQuery query, long cursor, int amount) {
+        long[] candidates = findCandidates(query, cursor);
+        List<Result> results = new ArrayList<Result>();
+
+        int i = candidates.length - 1;
+        for (; i >= 0 && results.size() < amount; i--) {
+            int doc = (int)candidates[i];
+
+            Channel channel;
+            HistoryLog.Position position;
+            synchronized(this) {
+                channel = channels.get(docs[doc * DOC_SIZE]);
+                position = new HistoryLog.Position(docs[doc * DOC_SIZE + 1], docs[doc * DOC_SIZE + 2]);
+            }
+
+            // Checks phrases and entries gone meanwhile
+            ChatEntry entry = log.readAt(channel, position);
+            if (entry != null && query.matches(channel, entry)) {
+                results.add(new Result(channel, position, entry));
+            }
+        }
+
+        return new ResultPage(results, i >= 0 ? candidates[i + 1] : -1);
+    }
+
+    /**
+     * Drops the entries of the channel before the position, for a history truncated on disk. They are no longer
+     * found, the space they take is freed once the index is rebuilt.
+     */
+    public synchronized void remove(Channel channel, HistoryLog.Position start) {
+        Integer channelId = channelIds.get(channel);
+        if (channelId == null) {
+            return;
+        }
+
+        for (int doc = 0; doc < docCount; doc++) {
+            if (docs[doc * DOC_SIZE] == channelId
+                    && new HistoryLog.Position(docs[doc * DOC_SIZE + 1], docs[doc * DOC_SIZE + 2]).compareTo(start) < 0) {
+                docs[doc * DOC_SIZE] = REMOVED;
+                removedCount++;
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Drops everything, for a history deleted from disk.
+     */
+    public synchronized void clear() {
+        reset();
+        catchingUp = new HashSet<Channel>();
+        changed = false;
+
+        file.delete();
+    }
+
+    public synchronized int size() {
+        return docCount - removedCount;
+    }
+
+    public synchronized String getStatistics() {
+        long postingBytes = 0;
+        for (Postings termPostings : postings.values()) {
+            postingBytes += termPostings.length;
+        }
+        return "[entries: " + docCount + ", dropped: " + removedCount + ", terms: " + postings.size() + ", posting bytes: " + postingBytes + "]";
+    }
+
+    /**
+     * Saves the index, if it changed since the last save.
+     */
+    public synchronized void save() {
+        if (!changed || !log.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fileStream = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 16384));
+                write(out);
+                out.flush();
+                fileStream.getFD().sync();
+            } finally {
+                fileStream.close();
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+            changed = false;
+            Ln.d("History index saved in " + (System.currentTimeMillis() - start) + "ms, " + file.length() + " bytes");
+        } catch (IOException e) {
+            Ln.e("Can't save history index: " + e.getMessage());
+            tempFile.delete();
+        }
+    }
+
+    private void reset() {
+        channels = new ArrayList<Channel>();
+        channelIds = new HashMap<Channel, Integer>();
+        lastIndexed = new ArrayList<HistoryLog.Position>();
+        docs = new int[DOC_SIZE * 1024];
+        docCount = 0;
+        removedCount = 0;
+        postings = new HashMap<String, Postings>();
+    }
+
+    private synchronized void add(Channel channel, HistoryLog.Position position, ChatEntry entry) {
+        int channelId = getChannelId(channel);
+        HistoryLog.Position last = lastIndexed.get(channelId);
+        if (last != null && position.compareTo(last) <= 0) {
+            // Indexed already
+            return;
+        }
+
+        String text = HistoryFormat.getText(entry);
+        if (text == null) {
+            return;
+        }
+
+        int doc = docCount++;
+        if (docCount * DOC_SIZE > docs.length) {
+            docs = Arrays.copyOf(docs, docs.length * 2);
+        }
+        docs[doc * DOC_SIZE] = channelId;
+        docs[doc * DOC_SIZE + 1] = position.segment;
+        docs[doc * DOC_SIZE + 2] = (int)position.offset;
+        docs[doc * DOC_SIZE + 3] = (int)(entry.getTime() / 1000);
+
+        for (String term : new HashSet<String>(tokenize(text))) {
+            addPosting(term, doc);
+        }
+        addPosting(AUTHOR_PREFIX + entry.getOwner().getName().toLowerCase(Locale.ENGLISH), doc);
+
+        lastIndexed.set(channelId, position);
+        changed = true;
+    }
+
+    private void addPosting(String term, int doc) {
+        Postings termPostings = postings.get(term);
+        if (termPostings == null) {
+            termPostings = new Postings(4);
+            postings.put(term, termPostings);
+        }
+        termPostings.add(doc);
+    }
+
+    private int getChannelId(Channel channel) {
+        Integer channelId = channelIds.get(channel);
+        if (channelId == null) {
+            channelId = channels.size();
+            channels.add(channel);
+            channelIds.put(channel, channelId);
+            lastIndexed.add(null);
+        }
+        return channelId;
+    }
+
+    private synchronized HistoryLog.Position getLastIndexed(Channel channel) {
+        Integer channelId = channelIds.get(channel);
+        return channelId != null ? lastIndexed.get(channelId) : null;
+    }
+
+    /**
+     * Entries matching the terms, channel and time of the query, older than the cursor.
+     * Returned as sorted keys, the time in seconds followed by the entry number.
+     */
+    private synchronized long[] findCandidates(HistoryQuery query, long cursor) {
+        List<String> terms = query.getRequiredTerms();
+        if (query.getAuthor() != null) {
+            terms.add(AUTHOR_PREFIX + query.getAuthor().toLowerCase(Locale.ENGLISH));
+        }
+
+        int[] matching = null;
+        if (!terms.isEmpty()) {
+            List<Postings> termPostings = new ArrayList<Postings>(terms.size());
+            for (String term : terms) {
+                Postings found = postings.get(term);
+                if (found == null) {
+                    return new long[0];
+                }
+                termPostings.add(found);
+            }
+
+            // Rarest terms first, keeps the intersection small
+            Collections.sort(termPostings, new Comparator<Postings>() {
+                @Override
+                public int compare(Postings first, Postings second) {
+                    return first.count < second.count ? -1 : (first.count == second.count ? 0 : 1);
+                }
+            });
+
+            matching = termPostings.get(0).toArray();
+            for (int i = 1; i < termPostings.size() && matching.length > 0; i++) {
+                matching = intersect(matching, termPostings.get(i).toArray());
+            }
+        }
+
+        boolean[] channelMatches = new boolean[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            channelMatches[i] = query.matchesChannel(channels.get(i));
+        }
+
+        int count = matching != null ? matching.length : docCount;
+        long[] keys = new long[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int doc = matching != null ? matching[i] : i;
+            int channelId = docs[doc * DOC_SIZE];
+            long time = docs[doc * DOC_SIZE + 3];
+
+            // Seconds only, entries of the boundary seconds are checked again on reading
+            if (channelId != REMOVED && channelMatches[channelId] && query.overlapsTime(time * 1000, time * 1000 + 999)) {
+                long key = (time << 32) | doc;
+                if (key < cursor) {
+                    keys[found++] = key;
+                }
+            }
+        }
+
+        Arrays.sort(keys, 0, found);
+        return Arrays.copyOf(keys, found);
+    }
+
+    private static int[] intersect(int[] first, int[] second) {
+        int[] result = new int[Math.min(first.length, second.length)];
+        int count = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[count++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        out.writeInt(channels.size());
+        for (int i = 0; i < channels.size(); i++) {
+            out.writeUTF(channels.get(i).getType().name());
+            out.writeUTF(channels.get(i).getChannelId());
+            HistoryLog.Position last = lastIndexed.get(i);
+            out.writeInt(last != null ? last.segment : -1);
+            out.writeLong(last != null ? last.offset : -1);
+        }
+
+        out.writeInt(docCount);
+        for (int i = 0; i < docCount * DOC_SIZE; i++) {
+            out.writeInt(docs[i]);
+        }
+
+        out.writeInt(postings.size());
+        for (Map.Entry<String, Postings> term : postings.entrySet()) {
+            Postings termPostings = term.getValue();
+            out.writeUTF(term.getKey());
+            out.writeInt(termPostings.count);
+            out.writeInt(termPostings.last);
+            out.writeInt(termPostings.length);
+            out.write(termPostings.data, 0, termPostings.length);
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+            try {
+                if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                    throw new IOException("Unknown index format");
+                }
+
+                List<Channel> loadedChannels = new ArrayList<Channel>();
+                Map<Channel, Integer> loadedChannelIds = new HashMap<Channel, Integer>();
+                List<HistoryLog.Position> loadedLastIndexed = new ArrayList<HistoryLog.Position>();
+
+                int channelCount = in.readInt();
+                for (int i = 0; i < channelCount; i++) {
+                    ChatroomType type = ChatroomType.valueOf(in.readUTF());
+                    Channel channel = new Channel(in.readUTF(), type);
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+
+                    loadedChannels.add(channel);
+                    loadedChannelIds.put(channel, i);
+                    loadedLastIndexed.add(segment >= 0 ? new HistoryLog.Position(segment, offset) : null);
+                }
+
+                int loadedDocCount = in.readInt();
+                int[] loadedDocs = new int[Math.max(DOC_SIZE * 1024, loadedDocCount * DOC_SIZE)];
+                int loadedRemovedCount = 0;
+                for (int i = 0; i < loadedDocCount * DOC_SIZE; i++) {
+                    loadedDocs[i] = in.readInt();
+                    if (i % DOC_SIZE == 0 && loadedDocs[i] == REMOVED) {
+                        loadedRemovedCount++;
+                    }
+                }
+
+                int termCount = in.readInt();
+                HashMap<String, Postings> loadedPostings = new HashMap<String, Postings>(termCount * 2);
+                for (int i = 0; i < termCount; i++) {
+                    String term = in.readUTF();
+                    int count = in.readInt();
+                    int last = in.readInt();
+                    int length = in.readInt();
+
+                    Postings termPostings = new Postings(length);
+                    in.readFully(termPostings.data);
+                    termPostings.length = length;
+                    termPostings.count = count;
+                    termPostings.last = last;
+                    loadedPostings.put(term, termPostings);
+                }
+
+                synchronized(this) {
+                    channels = loadedChannels;
+                    channelIds = loadedChannelIds;
+                    lastIndexed = loadedLastIndexed;
+                    docs = loadedDocs;
+                    docCount = loadedDocCount;
+                    removedCount = loadedRemovedCount;
+                    postings = loadedPostings;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Rebuilt from the history
+            Ln.e("Can't load history index: " + e.getMessage());
+            file.delete();
+        }
+    }
+}
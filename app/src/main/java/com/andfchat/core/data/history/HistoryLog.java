@@ -0,0 +1,1092 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import roboguice.util.Ln;
+import android.content.Context;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.Chatroom.ChatroomType;
+import com.andfchat.core.data.messages.ChatEntry;
+
+/**
+ * History of one character on disk. Every channel has its own directory of append-only segment files,
+ * new entries are appended to the last segment until it reaches {@link #SEGMENT_SIZE}. Full segments are sealed,
+ * compressed in blocks that can be read on their own (see {@link BlockIndex}).
+ *
+ * @author AndFChat
+ */
+public class HistoryLog {
+
+    public final static String HISTORY_DIRECTORY = "history";
+
+    private final static String SEGMENT_SUFFIX = ".seg";
+    private final static int SEGMENT_SIZE = 256 * 1024;
+    // Segments whose authors are kept for reading single entries
+    private final static int READ_CACHE_SIZE = 8;
+    private final static int BLOCK_INDEX_CACHE_SIZE = 16;
+
+    /**
+     * Position in the history of a channel, a segment and the offset of a record inside of it.
+     */
+    public static class Position implements Comparable<Position> {
+        public final int segment;
+        public final long offset;
+
+        public Position(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            if (segment != other.segment) {
+                return segment < other.segment ? -1 : 1;
+            }
+            return offset < other.offset ? -1 : (offset == other.offset ? 0 : 1);
+        }
+    }
+
+    public static class Page {
+        // Entries, oldest first
+        public final List<ChatEntry> entries;
+        // Position of the first entry, null if there is nothing older
+        public final Position start;
+
+        public Page(List<ChatEntry> entries, Position start) {
+            this.entries = entries;
+            this.start = start;
+        }
+    }
+
+    public interface EntryVisitor {
+        void visit(Position position, ChatEntry entry);
+    }
+
+    /**
+     * Informed about every entry written, on the writing thread.
+     */
+    public interface AppendListener {
+        void onAppended(Channel channel, Position position, ChatEntry entry);
+    }
+
+    /**
+     * Segment written to, with the authors defined in it so far.
+     */
+    private static class WriteState {
+        private final File file;
+        private final int number;
+        private final HistoryFormat.SegmentContext context;
+        // Zero until the header is written
+        private long length;
+
+        private WriteState(File file, int number, HistoryFormat.SegmentContext context, long length) {
+            this.file = file;
+            this.number = number;
+            this.context = context;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Segment read from, with the authors defined before end. For sealed segments all authors are known and the
+     * block read last is kept.
+     */
+    private static class ReadState {
+        private final HistoryFormat.SegmentContext context;
+        private long end;
+        private int block = -1;
+        private byte[] records;
+
+        private ReadState(HistoryFormat.SegmentContext context) {
+            this.context = context;
+            this.end = context.getHeaderSize();
+        }
+    }
+
+    private final File directory;
+    private volatile AppendListener appendListener;
+    // Checked for a torn end when opened, guarded by this
+    private final Map<Channel, WriteState> writeStates = new HashMap<Channel, WriteState>();
+    private final Map<File, ReadState> readStates = new LinkedHashMap<File, ReadState>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, ReadState> eldest) {
+            return size() > READ_CACHE_SIZE;
+        }
+    };
+    // Segments are read while held for reading, sealed, cut and deleted while held for writing. Readers and their
+    // cached index see the same layout of the file.
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    // Sealed segments don't change, their index is kept
+    private final Map<File, BlockIndex> blockIndexes = new LinkedHashMap<File, BlockIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, BlockIndex> eldest) {
+            return size() > BLOCK_INDEX_CACHE_SIZE;
+        }
+    };
+
+    public HistoryLog(File directory) {
+        this.directory = directory;
+    }
+
+    public static HistoryLog forCharacter(Context context, String characterName) {
+        File root = new File(context.getFilesDir(), HISTORY_DIRECTORY);
+        return new HistoryLog(new File(root, encode(characterName)));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public boolean exists() {
+        return directory.isDirectory();
+    }
+
+    public void setAppendListener(AppendListener appendListener) {
+        this.appendListener = appendListener;
+    }
+
+    /**
+     * Channels having a history.
+     */
+    public List<Channel> getChannels() {
+        List<Channel> channels = new ArrayList<Channel>();
+
+        File[] channelDirectories = directory.listFiles();
+        if (channelDirectories == null) {
+            return channels;
+        }
+
+        for (File channelDirectory : channelDirectories) {
+            Channel channel = decodeChannel(channelDirectory.getName());
+            if (channel != null) {
+                channels.add(channel);
+            }
+        }
+
+        return channels;
+    }
+
+    /**
+     * Reads all entries of the channel, oldest first.
+     */
+    public List<ChatEntry> read(Channel channel) {
+        final List<ChatEntry> entries = new ArrayList<ChatEntry>();
+        scan(channel, null, new EntryVisitor() {
+            @Override
+            public void visit(Position position, ChatEntry entry) {
+                entries.add(entry);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Visits all entries of the channel at or after the given position (null for all), oldest first.
+     */
+    public void scan(Channel channel, Position from, EntryVisitor visitor) {
+        scan(channel, from, null, visitor);
+    }
+
+    /**
+     * Visits the entries of the channel at or after from and before to (null for no limit), oldest first.
+     */
+    public void scan(Channel channel, Position from, Position to, EntryVisitor visitor) {
+        for (File segment : getSegments(channel)) {
+            int number = getSegmentNumber(segment);
+            if (from != null && number < from.segment) {
+                continue;
+            }
+            if (to != null && number > to.segment) {
+                break;
+            }
+
+            long start = from != null && number == from.segment ? from.offset : 0;
+            long limit = to != null && number == to.segment ? to.offset : Long.MAX_VALUE;
+            try {
+                readSegment(segment, number, start, limit, visitor);
+            } catch (IOException e) {
+                Ln.e("Can't read history segment " + segment + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the single entry at the position, null if there is none.
+     */
+    public ChatEntry readAt(Channel channel, Position position) {
+        File segment = getSegment(channel, position.segment);
+
+        segmentLock.readLock().lock();
+        try {
+            synchronized(readStates) {
+                try {
+                    HistoryFormat.SegmentContext header;
+                    DataInputStream headerIn = openAt(segment, 0);
+                    try {
+                        header = HistoryFormat.readHeader(headerIn);
+                    } finally {
+                        headerIn.close();
+                    }
+
+                    // Sealed or cut since
+                    ReadState state = readStates.get(segment);
+                    if (state == null || state.context.version != header.version || state.end > segment.length()) {
+                        if (header.version == HistoryFormat.VERSION_BLOCKS) {
+                            state = new ReadState(getBlockIndex(segment).createContext());
+                        } else {
+                            state = new ReadState(header);
+                        }
+                        readStates.put(segment, state);
+                    }
+
+                    HistoryFormat.SegmentContext context = state.context;
+                    if (context.version == HistoryFormat.VERSION_BLOCKS) {
+                        return readSealed(segment, state, position.offset);
+                    }
+                    if (context.version == HistoryFormat.VERSION && state.end < position.offset) {
+                        // Authors are defined by the records before
+                        DataInputStream in = openAt(segment, state.end);
+                        try {
+                            while (state.end < position.offset) {
+                                byte[] record = HistoryFormat.readRecord(in, context);
+                                if (record == null) {
+                                    return null;
+                                }
+                                HistoryFormat.decode(record, context);
+                                state.end += context.getPrefixSize() + record.length;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                    }
+
+                    DataInputStream in = openAt(segment, position.offset);
+                    try {
+                        byte[] record = HistoryFormat.readRecord(in, context);
+                        if (record == null) {
+                            return null;
+                        }
+
+                        ChatEntry entry = HistoryFormat.decode(record, context);
+                        if (state.end == position.offset) {
+                            state.end += context.getPrefixSize() + record.length;
+                        }
+                        return entry;
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    readStates.remove(segment);
+                    Ln.e("Can't read history entry of " + channel + ": " + e.getMessage());
+                    return null;
+                }
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Position after the last entry of the channel, null if it has no history.
+     */
+    public Position getEnd(Channel channel) {
+        File[] segments = getSegments(channel);
+        if (segments.length == 0) {
+            return null;
+        }
+
+        File last = segments[segments.length - 1];
+        try {
+            BlockIndex index = getBlockIndexIfSealed(last);
+            if (index != null) {
+                return new Position(getSegmentNumber(last), index.getEnd());
+            }
+        } catch (IOException e) {
+            Ln.e("Can't read history segment " + last + ": " + e.getMessage());
+        }
+        return new Position(getSegmentNumber(last), last.length());
+    }
+
+    /**
+     * Position of the first entry at or after the time, the end if there is none. Segments are searched by the time
+     * of their first entry, sealed ones by the index of their blocks, so only the part around the time is read.
+     */
+    public Position find(Channel channel, final long time) {
+        File[] segments = getSegments(channel);
+        if (segments.length == 0) {
+            return null;
+        }
+
+        // Last segment starting at or before the time
+        int low = 0;
+        int high = segments.length - 1;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getFirstTime(segments[middle]) <= time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        final Position[] result = new Position[1];
+        EntryVisitor visitor = new EntryVisitor() {
+            @Override
+            public void visit(Position position, ChatEntry entry) {
+                if (result[0] == null && entry.getTime() >= time) {
+                    result[0] = position;
+                }
+            }
+        };
+
+        File segment = segments[found];
+        int number = getSegmentNumber(segment);
+        try {
+            BlockIndex index = getBlockIndexIfSealed(segment);
+            if (index != null && index.getBlockCount() > 0) {
+                // The following block starts after the time
+                int block = index.findBlockByTime(time);
+                readSegment(segment, number, index.getStart(block), index.getStart(block + 1), visitor);
+                if (result[0] == null && block + 1 < index.getBlockCount()) {
+                    return new Position(number, index.getStart(block + 1));
+                }
+            } else {
+                readSegment(segment, number, 0, Long.MAX_VALUE, visitor);
+            }
+        } catch (IOException e) {
+            Ln.e("Can't read history segment " + segment + ": " + e.getMessage());
+        }
+
+        if (result[0] != null) {
+            return result[0];
+        }
+        return found + 1 < segments.length ? new Position(getSegmentNumber(segments[found + 1]), 0) : getEnd(channel);
+    }
+
+    /**
+     * Reads up to amount entries written before the given position, only the segments needed are read.
+     */
+    public Page readBefore(Channel channel, Position end, int amount) {
+        List<ChatEntry> entries = new ArrayList<ChatEntry>();
+        Position start = null;
+
+        File[] segments = getSegments(channel);
+        for (int i = segments.length - 1; i >= 0 && entries.size() < amount; i--) {
+            int number = getSegmentNumber(segments[i]);
+            if (number > end.segment) {
+                continue;
+            }
+
+            long limit = number == end.segment ? end.offset : Long.MAX_VALUE;
+            // Blocks of sealed segments are read on their own, newest first
+            long[] parts = getParts(segments[i]);
+            for (int j = parts.length - 1; j >= 0 && entries.size() < amount; j--) {
+                if (j > 0 && parts[j] >= limit) {
+                    continue;
+                }
+
+                final List<ChatEntry> partEntries = new ArrayList<ChatEntry>();
+                final List<Long> offsets = new ArrayList<Long>();
+                try {
+                    readSegment(segments[i], number, parts[j], j + 1 < parts.length ? Math.min(limit, parts[j + 1]) : limit, new EntryVisitor() {
+                        @Override
+                        public void visit(Position position, ChatEntry entry) {
+                            partEntries.add(entry);
+                            offsets.add(position.offset);
+                        }
+                    });
+                } catch (IOException e) {
+                    // Keep what could be read
+                    Ln.e("Can't read history segment " + segments[i] + ": " + e.getMessage());
+                }
+
+                int from = Math.max(0, partEntries.size() - (amount - entries.size()));
+                entries.addAll(0, partEntries.subList(from, partEntries.size()));
+
+                if (from > 0 || j > 0 || i > 0) {
+                    start = new Position(number, from < offsets.size() ? offsets.get(from) : parts[j]);
+                } else {
+                    start = null;
+                }
+            }
+        }
+
+        return new Page(entries, start);
+    }
+
+    /**
+     * Position of the entry amount entries before the end, null if the channel doesn't have that many.
+     */
+    public Position findBack(Channel channel, int amount) {
+        int remaining = amount;
+
+        File[] segments = getSegments(channel);
+        for (int i = segments.length - 1; i >= 0; i--) {
+            int number = getSegmentNumber(segments[i]);
+            long[] parts = getParts(segments[i]);
+            for (int j = parts.length - 1; j >= 0; j--) {
+                final List<Long> offsets = new ArrayList<Long>();
+                try {
+                    readSegment(segments[i], number, parts[j], j + 1 < parts.length ? parts[j + 1] : Long.MAX_VALUE, new EntryVisitor() {
+                        @Override
+                        public void visit(Position position, ChatEntry entry) {
+                            offsets.add(position.offset);
+                        }
+                    });
+                } catch (IOException e) {
+                    Ln.e("Can't read history segment " + segments[i] + ": " + e.getMessage());
+                }
+
+                if (offsets.size() >= remaining) {
+                    return new Position(number, offsets.get(offsets.size() - remaining));
+                }
+                remaining -= offsets.size();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the entries of the channel before the position. Older segments are deleted, a sealed segment containing
+     * the position is rewritten without the records before it. Entries keep their positions. The segment written to
+     * is never changed, entries in it are kept.
+     * @return the position entries before were dropped, null if nothing was dropped
+     */
+    public synchronized Position truncate(Channel channel, Position start) {
+        segmentLock.writeLock().lock();
+        try {
+            return truncateSegments(channel, start);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private Position truncateSegments(Channel channel, Position start) {
+        File[] segments = getSegments(channel);
+        Position dropped = null;
+
+        for (int i = 0; i < segments.length - 1; i++) {
+            File segment = segments[i];
+            int number = getSegmentNumber(segment);
+            if (number > start.segment) {
+                break;
+            }
+
+            try {
+                if (number < start.segment) {
+                    if (!segment.delete()) {
+                        throw new IOException("Can't delete " + segment);
+                    }
+                    dropped = new Position(getSegmentNumber(segments[i + 1]), 0);
+                    continue;
+                }
+
+                // Raw segments of older versions are only dropped as a whole
+                BlockIndex index = getBlockIndexIfSealed(segment);
+                if (index == null || index.getBlockCount() == 0 || start.offset <= index.getStart(0)) {
+                    break;
+                }
+
+                if (start.offset >= index.getEnd()) {
+                    if (!segment.delete()) {
+                        throw new IOException("Can't delete " + segment);
+                    }
+                    dropped = new Position(getSegmentNumber(segments[i + 1]), 0);
+                    break;
+                }
+
+                File cut = new File(segment.getPath() + ".tmp");
+                try {
+                    index.cut(segment, start.offset, cut);
+                    if (!cut.renameTo(segment)) {
+                        throw new IOException("Can't replace " + segment);
+                    }
+                } finally {
+                    cut.delete();
+                }
+                dropped = start;
+            } catch (IOException e) {
+                Ln.e("Can't truncate history of " + channel + ": " + e.getMessage());
+                break;
+            }
+        }
+
+        if (dropped != null) {
+            clearReadCaches();
+        }
+        return dropped;
+    }
+
+    /**
+     * Size of the history of the channel on disk.
+     */
+    public long getSize(Channel channel) {
+        long size = 0;
+        for (File segment : getSegments(channel)) {
+            size += segment.length();
+        }
+        return size;
+    }
+
+    /**
+     * Channels and bytes on disk, by type of chat.
+     */
+    public String getStatistics() {
+        Map<ChatroomType, long[]> types = new LinkedHashMap<ChatroomType, long[]>();
+        long total = 0;
+        for (Channel channel : getChannels()) {
+            long[] typeSize = types.get(channel.getType());
+            if (typeSize == null) {
+                typeSize = new long[2];
+                types.put(channel.getType(), typeSize);
+            }
+            long size = getSize(channel);
+            typeSize[0]++;
+            typeSize[1] += size;
+            total += size;
+        }
+
+        StringBuilder statistics = new StringBuilder("[bytes: ").append(total);
+        for (Map.Entry<ChatroomType, long[]> type : types.entrySet()) {
+            statistics.append(", ").append(type.getKey().name().toLowerCase(Locale.ENGLISH)).append(": ")
+                    .append(type.getValue()[0]).append(" channels, ").append(type.getValue()[1]).append(" bytes");
+        }
+        return statistics.append("]").toString();
+    }
+
+    /**
+     * Appends the entries to the channel, segments are written with a single write each.
+     * Returns once they are synced to disk.
+     */
+    public synchronized void append(Channel channel, List<ChatEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        File channelDirectory = getChannelDirectory(channel);
+        if (!channelDirectory.isDirectory() && !channelDirectory.mkdirs()) {
+            throw new IOException("Can't create " + channelDirectory);
+        }
+
+        try {
+            int written = 0;
+            while (written < entries.size()) {
+                written = write(channel, getWriteState(channel, entries.get(written)), entries, written);
+            }
+        } catch (IOException e) {
+            // Authors might be defined that never made it to disk, opened again with the next append
+            writeStates.remove(channel);
+            throw e;
+        }
+    }
+
+    public synchronized void delete() {
+        writeStates.clear();
+        segmentLock.writeLock().lock();
+        try {
+            clearReadCaches();
+            deleteRecursive(directory);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    public synchronized void delete(Channel channel) {
+        writeStates.remove(channel);
+        segmentLock.writeLock().lock();
+        try {
+            clearReadCaches();
+            deleteRecursive(getChannelDirectory(channel));
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return directory.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof HistoryLog && directory.equals(((HistoryLog)obj).directory);
+    }
+
+    File getChannelDirectory(Channel channel) {
+        return new File(directory, channel.getType().name() + "-" + encode(channel.getChannelId()));
+    }
+
+    /**
+     * Segments of the channel, oldest first.
+     */
+    File[] getSegments(Channel channel) {
+        File[] segments = getChannelDirectory(channel).listFiles();
+        if (segments == null) {
+            return new File[0];
+        }
+
+        List<File> result = new ArrayList<File>(segments.length);
+        for (File segment : segments) {
+            if (segment.getName().endsWith(SEGMENT_SUFFIX)) {
+                result.add(segment);
+            }
+        }
+
+        File[] sorted = result.toArray(new File[result.size()]);
+        // Names are zero padded numbers
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    File getSegment(Channel channel, int number) {
+        return new File(getChannelDirectory(channel), String.format(Locale.US, "%08d", number) + SEGMENT_SUFFIX);
+    }
+
+    static int getSegmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Visits the records of the segment starting at or after from and ending before limit (in bytes).
+     */
+    private void readSegment(File segment, int number, long from, long limit, EntryVisitor visitor) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            readRecords(segment, number, from, limit, visitor);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void readRecords(File segment, int number, long from, long limit, EntryVisitor visitor) throws IOException {
+        DataInputStream in = openAt(segment, 0);
+        try {
+            HistoryFormat.SegmentContext context = HistoryFormat.readHeader(in);
+            if (context.version == HistoryFormat.VERSION_BLOCKS) {
+                readBlocks(segment, number, from, limit, visitor);
+                return;
+            }
+
+            int prefixSize = context.getPrefixSize();
+            // Records before from define authors of later ones
+            boolean skip = context.version != HistoryFormat.VERSION;
+            long offset = context.getHeaderSize();
+
+            while (offset < limit) {
+                if (skip && offset < from) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    if (length <= 0 || length > HistoryFormat.MAX_RECORD_SIZE) {
+                        throw new IOException("Invalid record length: " + length);
+                    }
+
+                    int skipped = prefixSize - 4 + length;
+                    if (in.skipBytes(skipped) < skipped) {
+                        return;
+                    }
+                    offset += prefixSize + length;
+                    continue;
+                }
+
+                byte[] record = HistoryFormat.readRecord(in, context);
+                if (record == null || offset + prefixSize + record.length > limit) {
+                    return;
+                }
+
+                ChatEntry entry = HistoryFormat.decode(record, context);
+                if (offset >= from) {
+                    visitor.visit(new Position(number, offset), entry);
+                }
+                offset += prefixSize + record.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Visits the records of a sealed segment like {@link #readSegment(File, int, long, long, EntryVisitor)},
+     * only the blocks containing them are read.
+     */
+    private void readBlocks(File segment, int number, long from, long limit, EntryVisitor visitor) throws IOException {
+        BlockIndex index = getBlockIndex(segment);
+        HistoryFormat.SegmentContext context = index.createContext();
+
+        for (int block = index.findBlock(from); block < index.getBlockCount() && index.getStart(block) < limit; block++) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.readBlock(segment, block)));
+            long offset = index.getStart(block);
+
+            while (offset < index.getStart(block + 1) && offset < limit) {
+                byte[] record = HistoryFormat.readRecord(in, context);
+                if (record == null || offset + context.getPrefixSize() + record.length > limit) {
+                    return;
+                }
+
+                ChatEntry entry = HistoryFormat.decode(record, context);
+                if (offset >= from) {
+                    visitor.visit(new Position(number, offset), entry);
+                }
+                offset += context.getPrefixSize() + record.length;
+            }
+        }
+    }
+
+    private ChatEntry readSealed(File segment, ReadState state, long offset) throws IOException {
+        BlockIndex index = getBlockIndex(segment);
+        if (index.getBlockCount() == 0 || offset < index.getStart(0) || offset >= index.getEnd()) {
+            // Cut off or beyond the end
+            return null;
+        }
+
+        int block = index.findBlock(offset);
+        if (state.block != block) {
+            state.records = index.readBlock(segment, block);
+            state.block = block;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(state.records));
+        in.skipBytes((int)(offset - index.getStart(block)));
+        byte[] record = HistoryFormat.readRecord(in, state.context);
+        return record != null ? HistoryFormat.decode(record, state.context) : null;
+    }
+
+    /**
+     * Offsets the segment can be read from on its own, the start of every block for sealed ones.
+     */
+    private long[] getParts(File segment) {
+        try {
+            BlockIndex index = getBlockIndexIfSealed(segment);
+            if (index != null && index.getBlockCount() > 0) {
+                long[] parts = new long[index.getBlockCount()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = index.getStart(i);
+                }
+                return parts;
+            }
+        } catch (IOException e) {
+            Ln.e("Can't read history segment " + segment + ": " + e.getMessage());
+        }
+        return new long[] {0};
+    }
+
+    /**
+     * Time of the first entry of the segment, Long.MAX_VALUE if it has none.
+     */
+    private long getFirstTime(File segment) {
+        try {
+            BlockIndex index = getBlockIndexIfSealed(segment);
+            if (index != null) {
+                return index.getBlockCount() > 0 ? index.getFirstTime(0) : Long.MAX_VALUE;
+            }
+
+            DataInputStream in = openAt(segment, 0);
+            try {
+                HistoryFormat.SegmentContext context = HistoryFormat.readHeader(in);
+                byte[] record = HistoryFormat.readRecord(in, context);
+                return record != null ? HistoryFormat.decode(record, context).getTime() : Long.MAX_VALUE;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Ln.e("Can't read history segment " + segment + ": " + e.getMessage());
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private BlockIndex getBlockIndex(File segment) throws IOException {
+        synchronized(blockIndexes) {
+            BlockIndex index = blockIndexes.get(segment);
+            if (index == null) {
+                index = BlockIndex.read(segment);
+                blockIndexes.put(segment, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Index of the segment, null if it isn't sealed.
+     */
+    private BlockIndex getBlockIndexIfSealed(File segment) throws IOException {
+        synchronized(blockIndexes) {
+            if (blockIndexes.containsKey(segment)) {
+                return blockIndexes.get(segment);
+            }
+        }
+
+        DataInputStream in = openAt(segment, 0);
+        try {
+            if (HistoryFormat.readHeader(in).version != HistoryFormat.VERSION_BLOCKS) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        return getBlockIndex(segment);
+    }
+
+    /**
+     * Replaces the full segment by its compressed form, kept as it is if that fails.
+     */
+    private void seal(File segment) {
+        File sealed = new File(segment.getPath() + ".tmp");
+        long length = segment.length();
+
+        try {
+            // Full segments aren't written anymore, only replacing them has to wait for readers
+            BlockIndex.seal(segment, sealed);
+            segmentLock.writeLock().lock();
+            try {
+                if (!sealed.renameTo(segment)) {
+                    throw new IOException("Can't replace " + segment);
+                }
+                clearReadCaches();
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            Ln.d("Sealed " + segment + ": " + length + " -> " + segment.length() + " bytes");
+        } catch (IOException e) {
+            Ln.e("Can't seal history segment " + segment + ": " + e.getMessage());
+            sealed.delete();
+        }
+    }
+
+    private void clearReadCaches() {
+        synchronized(readStates) {
+            readStates.clear();
+        }
+        synchronized(blockIndexes) {
+            blockIndexes.clear();
+        }
+    }
+
+    /**
+     * Segment to append to, a new one if the last is full or of an older version.
+     */
+    private WriteState getWriteState(Channel channel, ChatEntry first) throws IOException {
+        WriteState state = writeStates.get(channel);
+        if (state == null) {
+            state = openForAppend(channel);
+        }
+
+        if (state != null && state.length >= SEGMENT_SIZE) {
+            seal(state.file);
+            state = null;
+        }
+
+        if (state == null) {
+            File[] segments = getSegments(channel);
+            int number = segments.length == 0 ? 1 : getSegmentNumber(segments[segments.length - 1]) + 1;
+            // Times are stored relative to the first entry
+            state = new WriteState(getSegment(channel, number), number, HistoryFormat.createSegment(first.getTime()), 0);
+        }
+
+        writeStates.put(channel, state);
+        return state;
+    }
+
+    /**
+     * Writes entries starting at from until the segment is full, returns the index of the first entry not written.
+     */
+    private int write(Channel channel, WriteState state, List<ChatEntry> entries, int from) throws IOException {
+        List<Position> positions = new ArrayList<Position>();
+        int index = from;
+
+        FileOutputStream fileStream = new FileOutputStream(state.file, true);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 8192));
+            if (state.length == 0) {
+                HistoryFormat.writeHeader(out, state.context);
+                state.length = state.context.getHeaderSize();
+            }
+
+            while (index < entries.size() && state.length < SEGMENT_SIZE) {
+                byte[] record = HistoryFormat.encode(entries.get(index), state.context);
+                out.write(record);
+                positions.add(new Position(state.number, state.length));
+                state.length += record.length;
+                index++;
+            }
+
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+
+        AppendListener listener = appendListener;
+        if (listener != null) {
+            for (int i = 0; i < positions.size(); i++) {
+                listener.onAppended(channel, positions.get(i), entries.get(from + i));
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Reads the last segment of the channel to continue it, cutting off a torn record left by a write interrupted
+     * by a crash. Records written before are kept. Returns null if a new segment has to be started.
+     */
+    private WriteState openForAppend(Channel channel) throws IOException {
+        File[] segments = getSegments(channel);
+        if (segments.length == 0) {
+            return null;
+        }
+
+        File last = segments[segments.length - 1];
+        HistoryFormat.SegmentContext context = null;
+        long valid = 0;
+
+        DataInputStream in = openAt(last, 0);
+        try {
+            context = HistoryFormat.readHeader(in);
+            if (context.version == HistoryFormat.VERSION_BLOCKS) {
+                // Sealed when it was full
+                return null;
+            }
+            valid = context.getHeaderSize();
+
+            byte[] record;
+            while ((record = HistoryFormat.readRecord(in, context)) != null) {
+                HistoryFormat.decode(record, context);
+                valid += context.getPrefixSize() + record.length;
+            }
+        } catch (IOException e) {
+            // Everything from here on is lost
+            Ln.w("History of " + channel + " is torn at " + valid + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+
+        if (valid == 0) {
+            Ln.w("Discarding " + last + " without a valid header");
+            if (!last.delete()) {
+                throw new IOException("Can't delete " + last);
+            }
+            return null;
+        }
+
+        if (valid < last.length()) {
+            Ln.w("Discarding " + (last.length() - valid) + " bytes at the end of " + last);
+            RandomAccessFile file = new RandomAccessFile(last, "rw");
+            try {
+                file.setLength(valid);
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        }
+
+        if (context.version != HistoryFormat.VERSION) {
+            // Continue in a segment of the current version
+            return null;
+        }
+        return new WriteState(last, getSegmentNumber(last), context, valid);
+    }
+
+    private static DataInputStream openAt(File segment, long offset) throws IOException {
+        FileInputStream fileStream = new FileInputStream(segment);
+        try {
+            fileStream.getChannel().position(offset);
+        } catch (IOException e) {
+            fileStream.close();
+            throw e;
+        }
+        return new DataInputStream(new BufferedInputStream(fileStream, 16384));
+    }
+
+    private static Channel decodeChannel(String name) {
+        int separator = name.indexOf('-');
+        if (separator == -1) {
+            return null;
+        }
+
+        try {
+            ChatroomType type = ChatroomType.valueOf(name.substring(0, separator));
+            return new Channel(decode(name.substring(separator + 1)), type);
+        } catch (IllegalArgumentException e) {
+            Ln.w("Unknown history directory: " + name);
+            return null;
+        }
+    }
+
+    private static String encode(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteRecursive(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -19,22 +19,33 @@
 package com.andfchat.core.data.history;
 
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import roboguice.util.Ln;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Pair;
 
 import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.Chatroom;
 import com.andfchat.core.data.Chatroom.ChatroomType;
 import com.andfchat.core.data.SessionData;
 import com.andfchat.core.data.messages.ChatEntry;
-import com.andfchat.core.data.messages.ChatEntry.MessageType;
+import com.andfchat.core.data.messages.ChatEntryBuffer;
+import com.andfchat.frontend.events.AndFChatEventManager;
+import com.andfchat.frontend.events.ChatroomEventListener.ChatroomEventType;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
@@ -42,105 +53,447 @@ import com.google.inject.Singleton;
 @Singleton
 public class HistoryManager {
 
+    // Maximum time to wait for pending entries to be written
+    private final static long FLUSH_TIMEOUT = 2000;
+    // Entries loaded when a chatroom is opened and when scrolling beyond the loaded ones
+    private final static int RECENT_ENTRIES = 100;
+    private final static int OLDER_ENTRIES = 200;
+
     @Inject
     private SessionData sessionData;
+    @Inject
+    private AndFChatEventManager eventManager;
 
     private final Context context;
+    private final HistoryWriter writer = new HistoryWriter();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "HistoryLoader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public interface SearchListener {
+        /**
+         * Called on the main thread.
+         */
+        void onResults(HistoryIndex.ResultPage page);
+    }
+
+    // History on disk of the current character
+    private HistoryLog log;
+    private HistoryIndex searchIndex;
+    // Channels having a history on disk
+    private Set<Channel> index = new HashSet<Channel>();
+    // Position of the oldest entry in memory, for channels having older entries on disk
+    private final Map<Channel, HistoryLog.Position> olderEntries = new HashMap<Channel, HistoryLog.Position>();
+    // Channels waiting for entries from disk
+    private final Set<Channel> loading = new HashSet<Channel>();
+    // Chatrooms opened while the history of the old format is migrated, null if no migration runs
+    private List<Chatroom> waitingForMigration = null;
+    // Entries to write once migrated, the migrated ones are older
+    private final List<Pair<Channel, ChatEntry>> writtenDuringMigration = new ArrayList<Pair<Channel, ChatEntry>>();
+    // History has been cleared during the migration, the migrated entries are dropped
+    private boolean clearedDuringMigration = false;
+
+    private HashMap<Channel, ChatEntryBuffer> histories = new HashMap<Channel, ChatEntryBuffer>();
 
     @Inject
     public HistoryManager(Context context) {
         this.context = context;
     }
 
-    private HashMap<Channel, List<ChatEntry>> histories = new HashMap<Channel, List<ChatEntry>>();
-
-    public List<ChatEntry> loadHistory(Channel channel) {
+    /**
+     * Sets the history of the chatroom. Recent entries are loaded in the background on first opening,
+     * {@link ChatroomEventType#HISTORY_LOADED} is fired once they are added.
+     */
+    public synchronized void openHistory(Chatroom chatroom) {
+        Channel channel = chatroom.getChannel();
         Ln.d("Load history for " + channel);
-        List<ChatEntry> history = histories.get(channel);
-        if (history == null) {
+
+        ChatEntryBuffer history = histories.get(channel);
+        if (history != null) {
+            chatroom.setChatHistory(history);
+            return;
+        }
+
+        history = new ChatEntryBuffer(chatroom.getCapacity());
+        histories.put(channel, history);
+        chatroom.setChatHistory(history);
+
+        if (waitingForMigration != null) {
+            // History is loaded once migrated
+            waitingForMigration.add(chatroom);
+            return;
+        }
+
+        if (log == null || !index.contains(channel)) {
             Ln.d("No history found");
-            history = new ArrayList<ChatEntry>();
+            return;
+        }
+
+        // Entries written from now on are added to the chatroom anyway
+        HistoryLog.Position end = log.getEnd(channel);
+        if (end != null) {
+            loadPage(chatroom, end, RECENT_ENTRIES);
+        }
+    }
 
-            Ln.d("put history for" + channel);
-            histories.put(channel, history);
+    /**
+     * Loads older entries from disk in the background, {@link ChatroomEventType#HISTORY_LOADED} is fired once
+     * they are added to the chatroom. Entries dropped from memory are read again.
+     * @return false if there are no older entries
+     */
+    public synchronized boolean loadOlderHistory(Chatroom chatroom) {
+        Channel channel = chatroom.getChannel();
+        if (loading.contains(channel)) {
+            return true;
         }
 
-        return history;
+        boolean dropped = chatroom.takeDroppedMessages();
+        HistoryLog.Position position = olderEntries.get(channel);
+        if (log == null || (position == null && !dropped) || histories.get(channel) != chatroom.getChatHistory()) {
+            return false;
+        }
+
+        loadPage(chatroom, dropped ? null : position, OLDER_ENTRIES);
+        return true;
+    }
+
+    /**
+     * @param end position to read before, null for the oldest entry in memory
+     */
+    private void loadPage(final Chatroom chatroom, final HistoryLog.Position end, final int amount) {
+        final Channel channel = chatroom.getChannel();
+        final HistoryLog historyLog = log;
+        loading.add(channel);
+
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                HistoryLog.Position pageEnd = end != null ? end : findFirstInMemory(chatroom, historyLog);
+                HistoryLog.Page page;
+                if (pageEnd != null) {
+                    page = historyLog.readBefore(channel, pageEnd, amount);
+                } else {
+                    page = new HistoryLog.Page(new ArrayList<ChatEntry>(), null);
+                }
+
+                synchronized(HistoryManager.this) {
+                    if (historyLog != log || histories.get(channel) != chatroom.getChatHistory()) {
+                        // History has been reloaded or cleared meanwhile
+                        return;
+                    }
+                    loading.remove(channel);
+
+                    chatroom.addOlderMessages(page.entries);
+                    if (page.start != null) {
+                        olderEntries.put(channel, page.start);
+                    } else {
+                        olderEntries.remove(channel);
+                    }
+                }
+
+                Ln.d("Loaded " + page.entries.size() + " entries for " + channel + " in " + (System.currentTimeMillis() - start) + "ms");
+                eventManager.fire(chatroom, ChatroomEventType.HISTORY_LOADED);
+            }
+        });
     }
 
-    public void loadHistory() {
+    public synchronized void loadHistory() {
+        log = null;
+        searchIndex = null;
+        index = new HashSet<Channel>();
+        histories = new HashMap<Channel, ChatEntryBuffer>();
+        olderEntries.clear();
+        loading.clear();
+        waitingForMigration = null;
+        writtenDuringMigration.clear();
+        clearedDuringMigration = false;
+
         if (sessionData.getSessionSettings().useHistory()) {
-            Ln.d("Load history from disk!");
-            String filename = sessionData.getCharacterName() + ".hist";
+            Ln.d("Load history index from disk!");
+            long start = System.currentTimeMillis();
 
-                FileInputStream fis;
-                try {
-                    Ln.d("loading file: " + filename);
-                    fis = context.openFileInput(filename);
-                    ObjectInputStream is = new ObjectInputStream(fis);
+            log = HistoryLog.forCharacter(context, sessionData.getCharacterName());
+            final String oldFile = sessionData.getCharacterName() + ".hist";
+            final boolean migrating = !log.exists() && context.getFileStreamPath(oldFile).exists();
+            if (!migrating) {
+                index.addAll(log.getChannels());
+                Ln.d("loading successfully! channels: " + index.size() + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
 
-                    histories = (HashMap<Channel, List<ChatEntry>>) is.readObject();
-                    Ln.d("loading successfully! channels: " + histories.size());
-                    is.close();
+            // Entries written from now on are indexed as they are written
+            final HistoryIndex logIndex = new HistoryIndex(log);
+            log.setAppendListener(logIndex);
+            searchIndex = logIndex;
 
-                    return;
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Ln.e("loading failed!");
+            final Map<ChatroomType, HistoryRetention> retentions = new HashMap<ChatroomType, HistoryRetention>();
+            for (ChatroomType type : ChatroomType.values()) {
+                HistoryRetention retention = sessionData.getSessionSettings().getHistoryRetention(type);
+                if (retention != null) {
+                    retentions.put(type, retention);
+                }
+            }
+            final HistoryCompactor compactor = new HistoryCompactor(log, logIndex);
+            final HistoryLog historyLog = log;
 
+            final Thread indexer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    logIndex.update();
+                    compactor.compact(retentions);
+                    Ln.d("History on disk: " + historyLog.getStatistics());
                 }
+            }, "HistoryIndexer");
+            indexer.setDaemon(true);
+
+            if (!migrating) {
+                indexer.start();
+                return;
+            }
+
+            // Reading the old file takes a while, chatrooms opened meanwhile get their history afterwards
+            waitingForMigration = new ArrayList<Chatroom>();
+            loader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(historyLog, oldFile);
+
+                    synchronized(HistoryManager.this) {
+                        if (historyLog != log) {
+                            // History has been reloaded meanwhile
+                            return;
+                        }
+
+                        boolean cleared = clearedDuringMigration;
+                        if (cleared) {
+                            resetLog();
+                        } else {
+                            index.addAll(historyLog.getChannels());
+                        }
+                        List<Chatroom> opened = waitingForMigration;
+                        waitingForMigration = null;
+                        clearedDuringMigration = false;
 
-            histories = new HashMap<Channel, List<ChatEntry>>();
+                        // Entries written meanwhile are in memory already, pages end before them
+                        for (Chatroom chatroom : opened) {
+                            HistoryLog.Position end = index.contains(chatroom.getChannel()) ? historyLog.getEnd(chatroom.getChannel()) : null;
+                            if (end != null && histories.get(chatroom.getChannel()) == chatroom.getChatHistory()) {
+                                loadPage(chatroom, end, RECENT_ENTRIES);
+                            } else {
+                                eventManager.fire(chatroom, ChatroomEventType.HISTORY_LOADED);
+                            }
+                        }
+
+                        for (Pair<Channel, ChatEntry> written : writtenDuringMigration) {
+                            writer.append(historyLog, written.first, written.second);
+                        }
+                        writtenDuringMigration.clear();
+
+                        if (cleared) {
+                            // Replaced by the index of the cleared log
+                            return;
+                        }
+                    }
+                    indexer.start();
+                }
+            });
         }
     }
 
-    public void saveHistory() {
-        if (sessionData.getSessionSettings().useHistory() && sessionData.getCharacterName() != null) {
-            Ln.d("Save history to disk!");
-            String filename = sessionData.getCharacterName() + ".hist";
+    /**
+     * Searches the history in the background, pages are requested with the cursor of the previous one.
+     * @param cursor {@link HistoryIndex.ResultPage#next} of the previous page, {@link Long#MAX_VALUE} for the first
+     */
+    public synchronized void search(final HistoryQuery query, final long cursor, final int amount, final SearchListener listener) {
+        final HistoryIndex logIndex = searchIndex;
+
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                final HistoryIndex.ResultPage page;
+                if (logIndex != null) {
+                    page = logIndex.search(query, cursor, amount);
+                } else {
+                    page = new HistoryIndex.ResultPage(new ArrayList<HistoryIndex.Result>(), -1);
+                }
+                Ln.d("Found " + page.results.size() + " entries in " + (System.currentTimeMillis() - start) + "ms");
 
-            if (context.deleteFile(filename)) {
-                Ln.d("Old file named: " + filename + " deleted");
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResults(page);
+                    }
+                });
             }
+        });
+    }
 
-            try {
-                FileOutputStream fos = context.openFileOutput(filename, Context.MODE_PRIVATE);
-                ObjectOutputStream outputStream = new ObjectOutputStream(fos);
-
-                // Filter history, do not save notations
-                HashMap<Channel, List<ChatEntry>> filteredHistories = new HashMap<Channel, List<ChatEntry>>();
-                for (Channel channel : histories.keySet()) {
-                    // Care about the channel filter
-                    if (sessionData.getSessionSettings().logChannel() || channel.getType() != ChatroomType.PUBLIC_CHANNEL) {
-                        List<ChatEntry> channelMessages = new ArrayList<ChatEntry>(histories.get(channel));
-
-                        // Clean up chat history by removing everything than messages and emotes.
-                        ListIterator<ChatEntry> iterator = channelMessages.listIterator();
-                        while (iterator.hasNext()) {
-                            ChatEntry entry = iterator.next();
-                            if (entry.getMessageType() != MessageType.MESSAGE && entry.getMessageType() != MessageType.EMOTE) {
-                                iterator.remove();
-                            }
+    /**
+     * Loads older entries from disk in the background until the given position is part of the chatroom,
+     * {@link ChatroomEventType#HISTORY_LOADED} is fired afterwards.
+     */
+    public synchronized void loadHistoryUntil(final Chatroom chatroom, final HistoryLog.Position position) {
+        if (log == null) {
+            return;
+        }
+
+        final Channel channel = chatroom.getChannel();
+        final HistoryLog historyLog = log;
+
+        // Runs after loads requested before, those decide where to continue
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    HistoryLog.Position start;
+                    boolean dropped;
+                    synchronized(HistoryManager.this) {
+                        if (historyLog != log || histories.get(channel) != chatroom.getChatHistory()) {
+                            return;
                         }
 
-                        filteredHistories.put(channel, channelMessages);
+                        dropped = chatroom.takeDroppedMessages();
+                        start = olderEntries.get(channel);
+                    }
+                    if (dropped) {
+                        start = findFirstInMemory(chatroom, historyLog);
+                    }
+                    if (start == null || start.compareTo(position) <= 0) {
+                        break;
+                    }
+
+                    HistoryLog.Page page = historyLog.readBefore(channel, start, OLDER_ENTRIES);
+
+                    synchronized(HistoryManager.this) {
+                        if (historyLog != log || histories.get(channel) != chatroom.getChatHistory()) {
+                            return;
+                        }
+
+                        chatroom.addOlderMessages(page.entries);
+                        if (page.start != null) {
+                            olderEntries.put(channel, page.start);
+                        } else {
+                            olderEntries.remove(channel);
+                        }
                     }
                 }
 
-                // Write serialized output
-                outputStream.writeObject(filteredHistories);
-                outputStream.flush();
-                outputStream.close();
-                Ln.d("Saving complete:" + histories.size());
-            } catch (Exception e) {
-                e.printStackTrace();
-                Ln.e("Saving failed!");
+                eventManager.fire(chatroom, ChatroomEventType.HISTORY_LOADED);
+            }
+        });
+    }
+
+    /**
+     * Position of the oldest entry of the chatroom in memory, the entries before are read from there on.
+     * For chatrooms whose oldest entries were dropped from memory, runs on the loader thread.
+     */
+    private HistoryLog.Position findFirstInMemory(Chatroom chatroom, HistoryLog historyLog) {
+        // Dropped entries might not be written yet
+        writer.flush(FLUSH_TIMEOUT);
+
+        ChatEntry first = chatroom.getFirstMessage();
+        if (first == null) {
+            return historyLog.getEnd(chatroom.getChannel());
+        }
+        return historyLog.find(chatroom.getChannel(), first.getTime());
+    }
+
+    /**
+     * Channels having a history on disk.
+     */
+    public synchronized List<Channel> getHistoryChannels() {
+        return log != null ? log.getChannels() : new ArrayList<Channel>();
+    }
+
+    /**
+     * Visits the entries on disk of the channel written from (inclusive) to (exclusive), oldest first. Only the part
+     * of the history in the time range is read. Waits for pending entries to be written first, so must not be called
+     * from the ui thread.
+     */
+    public void readHistory(Channel channel, long from, long to, HistoryLog.EntryVisitor visitor) {
+        HistoryLog historyLog;
+        synchronized(this) {
+            historyLog = log;
+        }
+        if (historyLog == null) {
+            return;
+        }
+
+        writer.flush(FLUSH_TIMEOUT);
+        HistoryLog.Position start = from != Long.MIN_VALUE ? historyLog.find(channel, from) : null;
+        HistoryLog.Position end = to != Long.MAX_VALUE ? historyLog.find(channel, to) : null;
+        if (start != null && end != null && start.compareTo(end) >= 0) {
+            return;
+        }
+        historyLog.scan(channel, start, end, visitor);
+    }
+
+    /**
+     * Writes the entry to the history of the channel in the background, if it is kept.
+     */
+    public void addEntry(Channel channel, ChatEntry entry) {
+        if (isKept(channel) && HistoryFormat.isStored(entry)) {
+            synchronized(this) {
+                if (waitingForMigration != null) {
+                    writtenDuringMigration.add(new Pair<Channel, ChatEntry>(channel, entry));
+                    return;
+                }
+                writer.append(log, channel, entry);
             }
         }
     }
 
-    public void clearHistory(boolean andSave) {
-        for (List<ChatEntry> chatEntries : histories.values()) {
+    /**
+     * True if entries of the channel are written to the history.
+     */
+    public boolean isKept(Channel channel) {
+        // Care about the channel filter
+        return log != null && sessionData.getSessionSettings().useHistory()
+                && (sessionData.getSessionSettings().logChannel() || channel.getType() != ChatroomType.PUBLIC_CHANNEL);
+    }
+
+    /**
+     * Entries are written as they arrive, writes the pending ones right away. Doesn't wait, might be called from
+     * the ui thread.
+     */
+    public void saveHistory() {
+        if (log != null) {
+            writer.commit();
+            Ln.d("Saving history: " + writer.getStatistics());
+
+            final HistoryIndex logIndex = searchIndex;
+            if (logIndex != null) {
+                loader.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        logIndex.save();
+                    }
+                });
+            }
+        }
+    }
+
+    public synchronized void clearHistory(boolean andSave) {
+        writer.discard();
+        index.clear();
+        olderEntries.clear();
+        loading.clear();
+
+        for (ChatEntryBuffer chatEntries : histories.values()) {
             chatEntries.clear();
         }
 
@@ -152,5 +505,71 @@ public class HistoryManager {
                 context.deleteFile(filename);
             }
         }
+
+        // Wait for a running commit, before deleting its files
+        writer.flush(FLUSH_TIMEOUT);
+        if (waitingForMigration != null) {
+            // Still written by the migration, the log is cleared once it is done
+            clearedDuringMigration = true;
+            writtenDuringMigration.clear();
+        } else if (log != null) {
+            resetLog();
+        }
+        // Logs of the other characters
+        new HistoryLog(context.getFileStreamPath(HistoryLog.HISTORY_DIRECTORY)).delete();
+    }
+
+    private void resetLog() {
+        // Through the live log, its append state and caches describe the deleted files
+        log.delete();
+
+        if (searchIndex != null) {
+            searchIndex.clear();
+        }
+        // Empty index of the new log, entries written from now on are added as they are written
+        HistoryIndex logIndex = new HistoryIndex(log);
+        logIndex.clear();
+        log.setAppendListener(logIndex);
+        searchIndex = logIndex;
+    }
+
+    /**
+     * Moves the history of the serialized format used before into the log, runs on the loader thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrate(HistoryLog historyLog, String filename) {
+        Ln.i("Migrating history file: " + filename);
+        long start = System.currentTimeMillis();
+
+        try {
+            ObjectInputStream is = new ObjectInputStream(new FileInputStream(context.getFileStreamPath(filename)));
+            HashMap<Channel, List<ChatEntry>> oldHistories;
+            try {
+                oldHistories = (HashMap<Channel, List<ChatEntry>>) is.readObject();
+            } finally {
+                is.close();
+            }
+
+            int count = 0;
+            for (Map.Entry<Channel, List<ChatEntry>> history : oldHistories.entrySet()) {
+                List<ChatEntry> entries = new ArrayList<ChatEntry>(history.getValue().size());
+                for (ChatEntry entry : history.getValue()) {
+                    if (HistoryFormat.isStored(entry)) {
+                        entries.add(entry);
+                    }
+                }
+                historyLog.append(history.getKey(), entries);
+                count += entries.size();
+            }
+
+            Ln.i("Migrated " + count + " entries in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Ln.e("Migrating history failed: " + e.getMessage());
+            // Don't keep half a migration
+            historyLog.delete();
+            return;
+        }
+
+        context.deleteFile(filename);
     }
 }
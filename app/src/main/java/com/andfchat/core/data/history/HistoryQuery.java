@@ -0,0 +1,199 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.messages.ChatEntry;
+
+/**
+ * Search in the history. Written like: <code>hello "good morning" from:"Some Name" in:frontpage after:2017-01-31 before:2017-03-01</code>,
+ * all words and phrases have to be part of a found entry.
+ *
+ * @author AndFChat
+ */
+public class HistoryQuery {
+
+    private final static Pattern PART_PATTERN = Pattern.compile("(\\w+):(\"[^\"]*\"|\\S+)|\"([^\"]*)\"|(\\S+)");
+    private final static String DATE_PATTERN = "yyyy-MM-dd";
+
+    private final List<String> terms = new ArrayList<String>();
+    private final List<List<String>> phrases = new ArrayList<List<String>>();
+    private String author = null;
+    private String channel = null;
+    // Time range of the entries, from inclusive, to exclusive
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    public static HistoryQuery parse(String text) {
+        HistoryQuery query = new HistoryQuery();
+
+        Matcher matcher = PART_PATTERN.matcher(text);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                String value = matcher.group(2);
+                if (value.length() > 1 && value.startsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                if (!query.addFilter(matcher.group(1).toLowerCase(Locale.ENGLISH), value)) {
+                    // Not a filter, search for it
+                    query.addText(matcher.group());
+                }
+            } else if (matcher.group(3) != null) {
+                List<String> phrase = HistoryIndex.tokenize(matcher.group(3));
+                if (phrase.size() == 1) {
+                    query.terms.add(phrase.get(0));
+                } else if (phrase.size() > 1) {
+                    query.phrases.add(phrase);
+                }
+            } else {
+                query.addText(matcher.group(4));
+            }
+        }
+
+        return query;
+    }
+
+    public HistoryQuery setAuthor(String author) {
+        this.author = author;
+        return this;
+    }
+
+    public HistoryQuery setChannel(String channel) {
+        this.channel = channel;
+        return this;
+    }
+
+    public HistoryQuery setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * True if nothing is searched for.
+     */
+    public boolean isEmpty() {
+        return terms.isEmpty() && phrases.isEmpty() && author == null && channel == null && from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+    }
+
+    /**
+     * Terms every found entry contains, the words of phrases included.
+     */
+    public List<String> getRequiredTerms() {
+        List<String> required = new ArrayList<String>(terms);
+        for (List<String> phrase : phrases) {
+            required.addAll(phrase);
+        }
+        return required;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public boolean matchesChannel(Channel channel) {
+        return this.channel == null || channel.getChannelId().toLowerCase(Locale.ENGLISH).contains(this.channel.toLowerCase(Locale.ENGLISH));
+    }
+
+    public boolean matchesTime(long time) {
+        return time >= from && time < to;
+    }
+
+    /**
+     * True if the time range of the query overlaps the given one, both ends inclusive.
+     */
+    public boolean overlapsTime(long start, long end) {
+        return end >= from && start < to;
+    }
+
+    /**
+     * Checks the entry against the whole query, the order of phrase words included.
+     */
+    public boolean matches(Channel channel, ChatEntry entry) {
+        if (!matchesChannel(channel) || !matchesTime(entry.getTime())) {
+            return false;
+        }
+        if (author != null && !author.equalsIgnoreCase(entry.getOwner().getName())) {
+            return false;
+        }
+
+        String text = HistoryFormat.getText(entry);
+        if (text == null) {
+            return false;
+        }
+
+        List<String> tokens = HistoryIndex.tokenize(text);
+        if (!tokens.containsAll(terms)) {
+            return false;
+        }
+        for (List<String> phrase : phrases) {
+            if (Collections.indexOfSubList(tokens, phrase) == -1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean addFilter(String key, String value) {
+        switch (key) {
+            case "from":
+                author = value;
+                return true;
+            case "in":
+                channel = value;
+                return true;
+            case "after":
+                Long after = parseDate(value);
+                if (after != null) {
+                    from = after;
+                }
+                return after != null;
+            case "before":
+                Long before = parseDate(value);
+                if (before != null) {
+                    to = before;
+                }
+                return before != null;
+            default:
+                return false;
+        }
+    }
+
+    private void addText(String text) {
+        terms.addAll(HistoryIndex.tokenize(text));
+    }
+
+    private static Long parseDate(String value) {
+        try {
+            return new SimpleDateFormat(DATE_PATTERN, Locale.US).parse(value).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
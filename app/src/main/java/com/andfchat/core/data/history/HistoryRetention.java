@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.util.Locale;
+
+import roboguice.util.Ln;
+
+/**
+ * How much of the history of a type of chat is kept: the entries of the last days, the newest entries or the newest
+ * bytes on disk.
+ *
+ * @author AndFChat
+ */
+public class HistoryRetention {
+
+    public enum Unit {
+        DAYS,
+        ENTRIES,
+        BYTES
+    }
+
+    public final Unit unit;
+    public final long amount;
+
+    public HistoryRetention(Unit unit, long amount) {
+        this.unit = unit;
+        this.amount = amount;
+    }
+
+    /**
+     * Reads a setting like "days:30", null if everything is kept.
+     */
+    public static HistoryRetention parse(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        int separator = value.indexOf(':');
+        if (separator == -1) {
+            return null;
+        }
+
+        try {
+            Unit unit = Unit.valueOf(value.substring(0, separator).toUpperCase(Locale.ENGLISH));
+            long amount = Long.parseLong(value.substring(separator + 1));
+            return amount > 0 ? new HistoryRetention(unit, amount) : null;
+        } catch (IllegalArgumentException e) {
+            Ln.w("Unknown history retention: " + value);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return unit.name().toLowerCase(Locale.ENGLISH) + ":" + amount;
+    }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.history;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import roboguice.util.Ln;
+import android.os.Process;
+import android.util.Pair;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.messages.ChatEntry;
+
+/**
+ * Appends history entries on a background thread. Entries arriving within {@link #COMMIT_DELAY} are committed
+ * together, with one write and sync per channel, so a killed process loses at most the entries of that delay.
+ *
+ * @author AndFChat
+ */
+public class HistoryWriter {
+
+    // Time entries are collected before being written
+    private final static long COMMIT_DELAY = 200;
+    private final static int MAX_BATCH_SIZE = 500;
+
+    private static class Pending {
+        private final HistoryLog log;
+        private final Channel channel;
+        private final ChatEntry entry;
+        // Set for flush requests, counted down once everything before is written
+        private final CountDownLatch flushed;
+
+        private Pending(HistoryLog log, Channel channel, ChatEntry entry, CountDownLatch flushed) {
+            this.log = log;
+            this.channel = channel;
+            this.entry = entry;
+            this.flushed = flushed;
+        }
+    }
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+
+    private int commits = 0;
+    private long written = 0;
+
+    public HistoryWriter() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "HistoryWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void append(HistoryLog log, Channel channel, ChatEntry entry) {
+        queue.add(new Pending(log, channel, entry, null));
+    }
+
+    /**
+     * Writes entries appended before right away, without waiting for them.
+     */
+    public void commit() {
+        queue.add(new Pending(null, null, null, new CountDownLatch(1)));
+    }
+
+    /**
+     * Waits until all entries appended before are written.
+     * @return false if the timeout elapsed first
+     */
+    public boolean flush(long timeoutMillis) {
+        CountDownLatch flushed = new CountDownLatch(1);
+        queue.add(new Pending(null, null, null, flushed));
+
+        try {
+            return flushed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Drops all entries not written yet.
+     */
+    public void discard() {
+        List<Pending> dropped = new ArrayList<Pending>();
+        queue.drainTo(dropped);
+
+        // Don't keep anybody waiting
+        for (Pending pending : dropped) {
+            if (pending.flushed != null) {
+                pending.flushed.countDown();
+            }
+        }
+    }
+
+    public synchronized String getStatistics() {
+        return "[commits: " + commits + ", entries: " + written + "]";
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<Pending>();
+
+        while (true) {
+            try {
+                batch.add(queue.take());
+
+                // Group commit, collect everything arriving in the meantime
+                long deadline = System.currentTimeMillis() + COMMIT_DELAY;
+                while (batch.size() < MAX_BATCH_SIZE && batch.get(batch.size() - 1).flushed == null) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                Ln.w("History writer interrupted");
+            } catch (RuntimeException e) {
+                Ln.e(e, "History writer failed");
+            } finally {
+                for (Pending pending : batch) {
+                    if (pending.flushed != null) {
+                        pending.flushed.countDown();
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        // Group by log and channel, keeping the order of the entries
+        Map<Pair<HistoryLog, Channel>, List<ChatEntry>> entries = new LinkedHashMap<Pair<HistoryLog, Channel>, List<ChatEntry>>();
+        for (Pending pending : batch) {
+            if (pending.entry == null) {
+                continue;
+            }
+
+            Pair<HistoryLog, Channel> key = new Pair<HistoryLog, Channel>(pending.log, pending.channel);
+            List<ChatEntry> channelEntries = entries.get(key);
+            if (channelEntries == null) {
+                channelEntries = new ArrayList<ChatEntry>();
+                entries.put(key, channelEntries);
+            }
+            channelEntries.add(pending.entry);
+        }
+
+        int count = 0;
+        for (Map.Entry<Pair<HistoryLog, Channel>, List<ChatEntry>> channelEntries : entries.entrySet()) {
+            try {
+                channelEntries.getKey().first.append(channelEntries.getKey().second, channelEntries.getValue());
+                count += channelEntries.getValue().size();
+            } catch (IOException e) {
+                Ln.e("Can't write history of " + channelEntries.getKey().second + ": " + e.getMessage());
+            }
+        }
+
+        if (count > 0) {
+            synchronized(this) {
+                commits++;
+                written += count;
+            }
+        }
+    }
+}
@@ -7,10 +7,12 @@ import android.text.Spanned;
 import android.text.style.ClickableSpan;
 import android.view.View;
 
+import com.andfchat.R;
 import com.andfchat.core.data.FCharacter;
 import com.andfchat.core.data.messages.ChatEntryFactory.AdClickListener;
 import com.andfchat.core.util.BBCodeReader;
 import com.andfchat.core.util.SmileyReader;
+import com.andfchat.core.util.UrlLinker;
 
 import java.util.Date;
 
@@ -25,6 +27,11 @@ public class AdEntry extends ChatEntry {
 
     private transient boolean showText = false;
 
+    // Shared with the other entries of the same ad, null if the text isn't shared
+    private transient AdStore.Ad ad;
+    // Times the ad was posted again while this entry was shown
+    private transient int reposts = 0;
+
     public AdEntry(FCharacter owner, String text, String displayText) {
         this(owner, text, displayText, new Date());
     }
@@ -33,9 +40,16 @@ public class AdEntry extends ChatEntry {
         super(owner, MessageType.AD, date);
         this.text = text;
         this.displayText = displayText;
+    }
 
-        delimiterBetweenDateAndName = " ";
-        delimiterBetweenNameAndText = " ";
+    public AdEntry(FCharacter owner, AdStore.Ad ad, String displayText, Date date) {
+        this(owner, ad.getText(), displayText, date);
+        this.ad = ad;
+    }
+
+    @Override
+    protected String getDelimiterBetweenNameAndText() {
+        return " ";
     }
 
     @Override
@@ -43,10 +57,10 @@ public class AdEntry extends ChatEntry {
         return text;
     }
 
-    public void setShowText(boolean value) {
+    public synchronized void setShowText(boolean value) {
         if( showText != value) {
             showText = value;
-            spannedText = null;
+            invalidate();
         }
     }
 
@@ -54,22 +68,38 @@ public class AdEntry extends ChatEntry {
         AdEntry.adClickListener = adClickListener;
     }
 
-    public Spannable createText(Context context) {
-        String text = getText(context);
-        text = BBCodeReader.modifyUrls(text, "http://");
-        //text = BBCodeReader.modifyUrls(text, "https://");
+    /**
+     * True if the entry shows the same ad as the given one.
+     */
+    public boolean isSameAd(AdEntry entry) {
+        return ad != null && ad == entry.ad;
+    }
+
+    /**
+     * Counts a repost of the ad that is collapsed into this entry.
+     */
+    public synchronized void addRepost() {
+        reposts++;
+        invalidate();
+    }
 
-        final Spannable textSpan = SmileyReader.addSmileys(context, BBCodeReader.createSpannableWithBBCode(text, context));
+    public synchronized int getReposts() {
+        return reposts;
+    }
 
+    @Override
+    public Spannable createText(final Context context) {
         if (adClickListener != null && !showText) {
-            // Create display text
-            Spannable displayedSpan = new SpannableString(displayText);
+            // Create display text, the ad is rendered once it is opened
+            int reposts = getReposts();
+            String label = reposts > 0 ? context.getString(R.string.ad_reposted, displayText, reposts + 1) : displayText;
+            Spannable displayedSpan = new SpannableString(label);
 
             ClickableSpan clickable = new ClickableSpan() {
 
                 @Override
                 public void onClick(View widget) {
-                adClickListener.openAd(textSpan);
+                adClickListener.openAd(getAdText(context));
                 }
             };
 
@@ -78,8 +108,29 @@ public class AdEntry extends ChatEntry {
             return displayedSpan;
         }
         else {
-            return textSpan;
+            return getAdText(context);
+        }
+    }
+
+    /**
+     * Rendered text of the ad, shared by all entries of the same ad.
+     */
+    private Spannable getAdText(Context context) {
+        if (ad == null) {
+            return renderAdText(context);
         }
+
+        Spannable adText = getRenderCache().getShared(ad.getRenderId());
+        if (adText == null) {
+            adText = renderAdText(context);
+            getRenderCache().putShared(ad.getRenderId(), adText);
+        }
+        return adText;
+    }
+
+    private Spannable renderAdText(Context context) {
+        String text = UrlLinker.linkUrls(getText(context));
+        return SmileyReader.addSmileys(context, BBCodeReader.createSpannableWithBBCode(text, context));
     }
 
 }
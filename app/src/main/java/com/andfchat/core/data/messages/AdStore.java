@@ -0,0 +1,106 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.messages;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+import com.google.inject.Singleton;
+
+/**
+ * Keeps one copy of each ad per author. Ads are posted again every few minutes in many channels, all their entries
+ * share the text and its rendered form. An ad is dropped once no entry uses it anymore.
+ * @author AndFChat
+ */
+@Singleton
+public class AdStore {
+
+    // Rough size of a string besides its characters
+    private final static int STRING_OVERHEAD = 40;
+
+    public static class Ad {
+        private final String author;
+        private final String text;
+        private final int hash;
+        // Key of the rendered text in the render cache, negative so it doesn't collide with entry ids
+        private final long renderId;
+
+        private Ad(String author, String text, long renderId) {
+            this.author = author;
+            this.text = text;
+            this.hash = 31 * author.hashCode() + text.hashCode();
+            this.renderId = renderId;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public long getRenderId() {
+            return renderId;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Ad))
+                return false;
+            Ad other = (Ad)obj;
+            return hash == other.hash && author.equals(other.author) && text.equals(other.text);
+        }
+    }
+
+    private final WeakHashMap<Ad, WeakReference<Ad>> ads = new WeakHashMap<Ad, WeakReference<Ad>>();
+
+    private long nextRenderId = -1;
+    private int reposts = 0;
+    private long savedBytes = 0;
+
+    /**
+     * Returns the known ad with the same author and text, or a new one.
+     */
+    public synchronized Ad intern(String author, String text) {
+        Ad ad = new Ad(author, text, nextRenderId);
+
+        WeakReference<Ad> reference = ads.get(ad);
+        Ad known = reference != null ? reference.get() : null;
+        if (known != null) {
+            reposts++;
+            savedBytes += STRING_OVERHEAD + text.length() * 2;
+            return known;
+        }
+
+        nextRenderId--;
+        ads.put(ad, new WeakReference<Ad>(ad));
+        return ad;
+    }
+
+    /**
+     * Ads kept, reposts sharing a kept ad and the memory their texts would have used.
+     */
+    public synchronized String getStatistics() {
+        return "[ads: " + ads.size() + ", reposts: " + reposts + ", saved: " + savedBytes + " bytes]";
+    }
+}
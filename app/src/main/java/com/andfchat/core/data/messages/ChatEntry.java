@@ -1,11 +1,19 @@
 package com.andfchat.core.data.messages;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.IllegalFormatException;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
+import roboguice.util.Ln;
 import android.content.Context;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -19,6 +27,7 @@ import com.andfchat.R;
 import com.andfchat.core.data.FCharacter;
 import com.andfchat.core.util.BBCodeReader;
 import com.andfchat.core.util.SmileyReader;
+import com.andfchat.core.util.UrlLinker;
 import com.andfchat.frontend.util.NameSpannable;
 
 public abstract class ChatEntry implements Serializable {
@@ -34,71 +43,167 @@ public abstract class ChatEntry implements Serializable {
         AD
     }
 
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    // Serialized form of the first versions, still read to migrate old history files
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("date", Date.class),
+        new ObjectStreamField("type", MessageType.class),
+        new ObjectStreamField("owner", FCharacter.class),
+        new ObjectStreamField("isOwned", boolean.class),
+        new ObjectStreamField("delimiterBetweenDateAndName", String.class),
+        new ObjectStreamField("delimiterBetweenNameAndText", String.class),
+        new ObjectStreamField("iconId", Integer.class)
+    };
+
+    private final static byte FLAG_OWNED = 1;
+    private final static byte FLAG_EXPORTABLE = 2;
+
     protected final static int DATE_CHAR_LENGTH = 10;
 
     protected static final DateFormat DATE_FORMAT = DateFormat.getTimeInstance(DateFormat.SHORT);
     protected static final DateFormat DATE_FORMAT_OLD = DateFormat.getDateInstance(DateFormat.SHORT);
 
-    protected final Date date;
-    protected final MessageType type;
-    protected final FCharacter owner;
-
-    protected boolean isOwned = false;
+    // Sessions keep many entries, so they are kept small: the time in milliseconds, the ordinal of the type and the
+    // flags, instead of objects.
+    private long time;
+    private FCharacter owner;
+    private byte type;
+    private byte flags = 0;
+    // Drawable resource, 0 if there is none
+    private int iconId = 0;
 
-    protected String delimiterBetweenDateAndName = " ";
-    protected String delimiterBetweenNameAndText = ": ";
+    private static final RenderCache RENDER_CACHE = new RenderCache();
+    private static final AtomicLong ENTRY_IDS = new AtomicLong();
 
-    protected transient Spannable spannedText = null;
+    private static final AtomicLongFieldUpdater<ChatEntry> ENTRY_ID_UPDATER = AtomicLongFieldUpdater.newUpdater(ChatEntry.class, "entryId");
 
-    public Integer iconId = null;
+    // Session unique id, used as key for rendered texts. Set without locking the entry, the render cache asks for it
+    // while entries might be locked by other threads.
+    private transient volatile long entryId = 0;
 
     public ChatEntry(FCharacter owner, MessageType type, Date date) {
+        this(owner, type, date.getTime());
+    }
+
+    public ChatEntry(FCharacter owner, MessageType type, long time) {
         this.owner = owner;
-        this.type = type;
-        this.date = date;
+        this.type = (byte)type.ordinal();
+        this.time = time;
     }
 
     public boolean isOwned() {
-        return isOwned;
+        return (flags & FLAG_OWNED) != 0;
     }
 
     public void setOwned(boolean isOwned) {
-        this.isOwned = isOwned;
+        setFlag(FLAG_OWNED, isOwned);
+    }
+
+    /**
+     * True for chat written in this session, as opposed to status messages and entries loaded from the history.
+     */
+    public boolean isExportable() {
+        return (flags & FLAG_EXPORTABLE) != 0;
+    }
+
+    public void setExportable(boolean isExportable) {
+        setFlag(FLAG_EXPORTABLE, isExportable);
+    }
+
+    private synchronized void setFlag(byte flag, boolean value) {
+        flags = (byte)(value ? flags | flag : flags & ~flag);
     }
 
     public FCharacter getOwner() {
         return owner;
     }
 
+    /**
+     * Time written in milliseconds, doesn't create a date.
+     */
+    public long getTime() {
+        return time;
+    }
+
     public Date getDate() {
-        return date;
+        return new Date(time);
     }
 
     public MessageType getMessageType() {
-        return type;
+        return MESSAGE_TYPES[type];
     }
 
-    public void setIcon(Integer iconId) {
+    public void setIcon(int iconId) {
         this.iconId = iconId;
     }
 
-    public Integer getIcon() {
+    /**
+     * Drawable shown next to the entry, 0 if there is none.
+     */
+    public int getIcon() {
         return iconId;
     }
 
+    /**
+     * True if the display text is already rendered and {@link #getChatMessage(Context)} returns without work.
+     */
+    public boolean isRendered() {
+        return RENDER_CACHE.contains(this);
+    }
+
+    /**
+     * Id of the entry, unique for this session. Entries loaded from history get an id on first use.
+     */
+    public long getEntryId() {
+        if (entryId == 0) {
+            // Only the first id set wins if several threads ask at once
+            ENTRY_ID_UPDATER.compareAndSet(this, 0, ENTRY_IDS.incrementAndGet());
+        }
+        return entryId;
+    }
+
+    /**
+     * Shared cache holding the rendered texts of recently displayed entries.
+     */
+    public static RenderCache getRenderCache() {
+        return RENDER_CACHE;
+    }
+
+    /**
+     * Drops the rendered text, it will be rendered again on next display.
+     */
+    protected void invalidate() {
+        RENDER_CACHE.remove(this);
+    }
+
+    /**
+     * Renders the display text if it isn't cached, might be called from a background thread.
+     */
     public Spannable getChatMessage(Context context) {
-        if (spannedText == null) {
+        Spannable spannedText = RENDER_CACHE.get(this);
+        if (spannedText != null) {
+            return spannedText;
+        }
+
+        synchronized(this) {
+            // Might have been rendered by another thread meanwhile
+            spannedText = RENDER_CACHE.peek(this);
+            if (spannedText != null) {
+                return spannedText;
+            }
+
             Spannable dateSpan = createDateSpannable(context);
             Spannable textSpan = createText(context);
 
             // Time
             SpannableStringBuilder finishedText = new SpannableStringBuilder(dateSpan);
             // Delimiter
-            finishedText.append(delimiterBetweenDateAndName);
+            finishedText.append(getDelimiterBetweenDateAndName());
             // Name
             finishedText.append(new NameSpannable(owner, getNameColorId(), context.getResources()));
             // Delimiter
-            finishedText.append(delimiterBetweenNameAndText);
+            finishedText.append(getDelimiterBetweenNameAndText());
             // Message
             finishedText.append(textSpan);
 
@@ -107,13 +212,40 @@ public abstract class ChatEntry implements Serializable {
                 finishedText.setSpan(new StyleSpan(getTypeFace()), DATE_CHAR_LENGTH, finishedText.length(), Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
             }
 
-            spannedText = finishedText;
+            RENDER_CACHE.put(this, finishedText);
+            return finishedText;
+        }
+    }
+
+    /**
+     * Renders the text for exports, like the display text without date and without loading images.
+     * Not cached, might be called from a background thread.
+     */
+    public Spannable getExportMessage(Context context) {
+        SpannableStringBuilder exportText = new SpannableStringBuilder(getDelimiterBetweenDateAndName().trim());
+        if (exportText.length() > 0) {
+            exportText.append(' ');
+        }
+        exportText.append(new NameSpannable(owner, getNameColorId(), context.getResources()));
+        exportText.append(getDelimiterBetweenNameAndText());
+        exportText.append(BBCodeReader.createSpannableWithBBCode(UrlLinker.linkUrls(getText(context)), context, false));
+
+        if (getTypeFace() != null) {
+            exportText.setSpan(new StyleSpan(getTypeFace()), 0, exportText.length(), Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
         }
-        return spannedText;
+        return exportText;
+    }
+
+    /**
+     * Text of the entry as written, BBCode included.
+     */
+    public String getExportText(Context context) {
+        return getText(context);
     }
 
     protected Spannable createDateSpannable(Context context) {
-        String dateText = '[' + (date.before(new Date(System.currentTimeMillis() - 86400000)) ? DATE_FORMAT_OLD : DATE_FORMAT).format(date) + ']';
+        Date date = getDate();
+        String dateText = '[' + (time < System.currentTimeMillis() - 86400000 ? DATE_FORMAT_OLD : DATE_FORMAT).format(date) + ']';
         Spannable dateSpan = new SpannableString(dateText);
         dateSpan.setSpan(new ForegroundColorSpan(context.getResources().getColor(R.color.text_timestamp_color)), 0, dateText.length(), Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
         dateSpan.setSpan(new RelativeSizeSpan(0.70f), 0, dateText.length(), Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
@@ -122,9 +254,7 @@ public abstract class ChatEntry implements Serializable {
     }
 
     protected Spannable createText(Context context) {
-        String text = getText(context);
-        text = BBCodeReader.modifyUrls(text, "http://");
-        text = BBCodeReader.modifyUrls(text, "https://");
+        String text = UrlLinker.linkUrls(getText(context));
 
         Spannable textSpan = BBCodeReader.createSpannableWithBBCode(text, context);
         // Replace smiles in text
@@ -133,21 +263,73 @@ public abstract class ChatEntry implements Serializable {
 
     protected abstract String getText(Context context);
 
+    /**
+     * Text of a string resource formatted with the given parts, the unformatted text if they don't fit.
+     */
+    protected static String formatText(Context context, int stringId, Object[] textParts) {
+        String text = context.getString(stringId);
+        if (textParts != null) {
+            try {
+                text = String.format(text, textParts);
+            } catch (IllegalFormatException exception) {
+                Ln.e(exception, "Tried to format text: " + text);
+            }
+        }
+
+        return text;
+    }
+
     protected Integer getTypeFace() {
         return null;
     }
 
+    protected String getDelimiterBetweenDateAndName() {
+        return " ";
+    }
+
+    protected String getDelimiterBetweenNameAndText() {
+        return ": ";
+    }
+
     protected Integer getNameColorId() {
         return null;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("date", getDate());
+        fields.put("type", getMessageType());
+        fields.put("owner", owner);
+        fields.put("isOwned", isOwned());
+        fields.put("delimiterBetweenDateAndName", getDelimiterBetweenDateAndName());
+        fields.put("delimiterBetweenNameAndText", getDelimiterBetweenNameAndText());
+        fields.put("iconId", iconId != 0 ? Integer.valueOf(iconId) : null);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Date date = (Date)fields.get("date", null);
+        MessageType messageType = (MessageType)fields.get("type", null);
+        if (date == null || messageType == null) {
+            throw new IOException("Entry without date or type");
+        }
+
+        time = date.getTime();
+        type = (byte)messageType.ordinal();
+        owner = (FCharacter)fields.get("owner", null);
+        setOwned(fields.get("isOwned", false));
+        // Resource ids of old versions are outdated
+        iconId = 0;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + ((date == null) ? 0 : date.hashCode());
+        result = prime * result + (int)(time ^ (time >>> 32));
         result = prime * result + ((owner == null) ? 0 : owner.hashCode());
-        result = prime * result + ((type == null) ? 0 : type.hashCode());
+        result = prime * result + type;
         return result;
     }
 
@@ -160,10 +342,7 @@ public abstract class ChatEntry implements Serializable {
         if (getClass() != obj.getClass())
             return false;
         ChatEntry other = (ChatEntry) obj;
-        if (date == null) {
-            if (other.date != null)
-                return false;
-        } else if (!date.equals(other.date))
+        if (time != other.time)
             return false;
         if (owner == null) {
             if (other.owner != null)
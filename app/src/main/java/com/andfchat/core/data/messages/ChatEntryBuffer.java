@@ -0,0 +1,168 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.messages;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Entries of a chatroom, oldest first, in a ring buffer. Once the capacity is reached, adding an entry drops the
+ * oldest one. Entries loaded from the history in front are kept even beyond the capacity, until it is set again.
+ * Not synchronized, guarded by the chatroom.
+ * @author AndFChat
+ */
+public class ChatEntryBuffer extends AbstractList<ChatEntry> implements RandomAccess {
+
+    private final static int INITIAL_LENGTH = 16;
+
+    private ChatEntry[] entries;
+    // Index of the oldest entry
+    private int head = 0;
+    private int size = 0;
+    private int capacity;
+    // Entries dropped since asked last
+    private boolean dropped = false;
+    // Time of the oldest chat of this session dropped, Long.MAX_VALUE if none was
+    private long droppedChatTime = Long.MAX_VALUE;
+
+    public ChatEntryBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new ChatEntry[Math.min(this.capacity, INITIAL_LENGTH)];
+    }
+
+    @Override
+    public ChatEntry get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return entries[(head + index) % entries.length];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds the newest entry, dropping the oldest if the buffer is full.
+     */
+    @Override
+    public boolean add(ChatEntry entry) {
+        if (size >= capacity) {
+            dropFirst(size - capacity + 1);
+        }
+        ensureLength(size + 1);
+
+        entries[(head + size) % entries.length] = entry;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Adds older entries in front, oldest first. The capacity grows to keep them.
+     */
+    public void addAllFirst(List<ChatEntry> older) {
+        capacity = Math.max(capacity, size + older.size());
+        ensureLength(size + older.size());
+
+        for (int i = older.size() - 1; i >= 0; i--) {
+            head = (head - 1 + entries.length) % entries.length;
+            entries[head] = older.get(i);
+            size++;
+        }
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(entries, null);
+        head = 0;
+        size = 0;
+        droppedChatTime = Long.MAX_VALUE;
+        modCount++;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the number of entries kept, the oldest entries beyond it are dropped.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        if (size > this.capacity) {
+            dropFirst(size - this.capacity);
+        }
+
+        // Give back memory of a much smaller buffer
+        if (entries.length > INITIAL_LENGTH && entries.length / 2 > Math.max(size, this.capacity)) {
+            resize(Math.max(INITIAL_LENGTH, Math.max(size, this.capacity)));
+        }
+    }
+
+    /**
+     * True if entries were dropped since the last call.
+     */
+    public boolean takeDropped() {
+        boolean result = dropped;
+        dropped = false;
+        return result;
+    }
+
+    /**
+     * Time of the oldest entry written in this session ({@link ChatEntry#isExportable()}) that was dropped,
+     * Long.MAX_VALUE if none was.
+     */
+    public long getDroppedChatTime() {
+        return droppedChatTime;
+    }
+
+    private void dropFirst(int count) {
+        for (int i = 0; i < count; i++) {
+            // Dropped oldest first, so the first one is the oldest
+            if (droppedChatTime == Long.MAX_VALUE && entries[head].isExportable()) {
+                droppedChatTime = entries[head].getTime();
+            }
+            entries[head] = null;
+            head = (head + 1) % entries.length;
+        }
+        size -= count;
+        dropped = true;
+        modCount++;
+    }
+
+    private void ensureLength(int length) {
+        if (length > entries.length) {
+            resize(Math.max(length, entries.length * 2));
+        }
+    }
+
+    private void resize(int length) {
+        ChatEntry[] resized = new ChatEntry[length];
+        for (int i = 0; i < size; i++) {
+            resized[i] = entries[(head + i) % entries.length];
+        }
+        entries = resized;
+        head = 0;
+    }
+}
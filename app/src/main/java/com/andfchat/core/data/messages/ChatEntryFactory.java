@@ -3,7 +3,6 @@ package com.andfchat.core.data.messages;
 
 import android.content.Context;
 import android.text.Spannable;
-import android.util.Log;
 
 import com.andfchat.R;
 import com.andfchat.core.data.FCharacter;
@@ -11,17 +10,18 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import java.util.Date;
-import java.util.MissingFormatArgumentException;
 
 @Singleton
 public class ChatEntryFactory {
 
     private final Context context;
+    private final AdStore adStore;
 
 
     @Inject
-    public ChatEntryFactory(Context context) {
+    public ChatEntryFactory(Context context, AdStore adStore) {
         this.context = context;
+        this.adStore = adStore;
     }
 
     public ChatEntry getMessage(FCharacter owner, String text) {
@@ -56,8 +56,14 @@ public class ChatEntryFactory {
         return getNotation(owner, stringId, null);
     }
 
+    /**
+     * The text is formatted when the entry is shown or exported, most notations in busy chats never are. The parts
+     * are kept until then, so they have to be values that don't change, like strings.
+     */
     public ChatEntry getNotation(FCharacter owner, int stringId, Object[] textParts) {
-        return getNotation(owner, getText(stringId, textParts), new Date());
+        ChatEntry entry = new NotationEntry(owner, stringId, textParts, new Date());
+        entry.setIcon(R.drawable.ic_info_dark);
+        return entry;
     }
 
     public ChatEntry getNotation(FCharacter owner, String text, Date time) {
@@ -76,8 +82,11 @@ public class ChatEntryFactory {
         return getAd(owner, text, new Date());
     }
 
+    /**
+     * Reposts of an ad share the text with the entries already created for it.
+     */
     public ChatEntry getAd(FCharacter owner, String text, Date time) {
-        AdEntry entry = new AdEntry(owner, text, context.getString(R.string.ad_clickable_advertisement), time);
+        AdEntry entry = new AdEntry(owner, adStore.intern(owner.getName(), text), context.getString(R.string.ad_clickable_advertisement), time);
         entry.setIcon(R.drawable.ic_ad);
         return entry;
     }
@@ -87,7 +96,9 @@ public class ChatEntryFactory {
     }
 
     public ChatEntry getError(FCharacter owner, int stringId, Object[] textParts) {
-        return getError(owner, getText(stringId, textParts));
+        ChatEntry entry = new ErrorEntry(owner, stringId, textParts);
+        entry.setIcon(R.drawable.ic_error);
+        return entry;
     }
 
     public ChatEntry getError(FCharacter owner, String text) {
@@ -102,21 +113,6 @@ public class ChatEntryFactory {
         return entry;
     }
 
-    private String getText(int stringId, Object[] textParts) {
-        String text = context.getString(stringId);
-        if (textParts != null) {
-            try {
-                text = String.format(text, textParts);
-            }
-            catch (MissingFormatArgumentException exception) {
-                Log.e(this.getClass().getSimpleName(), "Tried to format text: " + text);
-                exception.printStackTrace();
-            }
-        }
-
-        return text;
-    }
-
     public void setShowAdText(boolean value) {
 
     }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.messages;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import roboguice.util.Ln;
+import android.content.Context;
+import android.os.Process;
+
+import com.andfchat.core.data.Chatroom;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Renders the display text of incoming chat entries on a background thread, so the chat list only has to attach
+ * the finished spannable. Entries are only rendered for the active room and the rooms opened shortly before it,
+ * every other entry is rendered on demand by {@link ChatEntry#getChatMessage(Context)}.
+ * @author AndFChat
+ */
+@Singleton
+public class ChatEntryRenderer {
+
+    // Amount of rooms (active room included) for which incoming entries are rendered ahead.
+    private final static int PRERENDERED_ROOMS = 3;
+
+    private final Context context;
+    private final ExecutorService executor;
+
+    // Most recently opened room first
+    private final LinkedList<Chatroom> recentRooms = new LinkedList<Chatroom>();
+
+    @Inject
+    public ChatEntryRenderer(Context context) {
+        this.context = context.getApplicationContext();
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "ChatEntryRenderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Remembers the room as recently opened, entries for it will be rendered ahead.
+     */
+    public void roomOpened(Chatroom chatroom) {
+        synchronized(recentRooms) {
+            recentRooms.remove(chatroom);
+            recentRooms.addFirst(chatroom);
+            while (recentRooms.size() > PRERENDERED_ROOMS) {
+                recentRooms.removeLast();
+            }
+        }
+    }
+
+    public void roomClosed(Chatroom chatroom) {
+        synchronized(recentRooms) {
+            recentRooms.remove(chatroom);
+        }
+    }
+
+    /**
+     * Queues the entry for rendering if it belongs to a room which is likely to be displayed.
+     */
+    public void entryAdded(Chatroom chatroom, ChatEntry entry) {
+        synchronized(recentRooms) {
+            if (!recentRooms.contains(chatroom)) {
+                return;
+            }
+        }
+
+        render(entry);
+    }
+
+    public void render(final ChatEntry entry) {
+        if (entry == null || entry.isRendered()) {
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    entry.getChatMessage(context);
+                } catch (RuntimeException e) {
+                    // Entry will be rendered again on display
+                    Ln.w("Prerendering failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void clear() {
+        synchronized(recentRooms) {
+            recentRooms.clear();
+        }
+    }
+}
@@ -14,17 +14,19 @@ public class EmoteEntry extends ChatEntry {
     private final String text;
 
     public EmoteEntry(FCharacter owner, String text, Date date) {
-        super(owner, MessageType.EMOTE, date);
-        this.text = text;
+        this(owner, text, date.getTime());
+    }
 
-        delimiterBetweenDateAndName = " * ";
+    public EmoteEntry(FCharacter owner, String text, long time) {
+        super(owner, MessageType.EMOTE, time);
+        this.text = text;
+    }
 
-        if (text.charAt(0) == '\'') {
-            delimiterBetweenNameAndText = "";
-        }
-        else {
-            delimiterBetweenNameAndText = " ";
-        }
+    /**
+     * Text as written, without any formatting.
+     */
+    public String getRawText() {
+        return text;
     }
 
     @Override
@@ -32,6 +34,16 @@ public class EmoteEntry extends ChatEntry {
         return text;
     }
 
+    @Override
+    protected String getDelimiterBetweenDateAndName() {
+        return " * ";
+    }
+
+    @Override
+    protected String getDelimiterBetweenNameAndText() {
+        return text.charAt(0) == '\'' ? "" : " ";
+    }
+
     @Override
     protected Integer getTypeFace() {
         return Typeface.ITALIC;
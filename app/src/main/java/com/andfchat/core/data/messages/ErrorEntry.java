@@ -12,16 +12,28 @@ public class ErrorEntry extends ChatEntry {
 
     private static final long serialVersionUID = 1L;
 
+    // Either the text or a string resource with the parts to format it, formatted only when shown or exported
     private final String text;
+    private final int stringId;
+    private final Object[] textParts;
 
     public ErrorEntry(FCharacter owner, String text) {
         super(owner, MessageType.ERROR, new Date());
         this.text = text;
+        this.stringId = 0;
+        this.textParts = null;
+    }
+
+    public ErrorEntry(FCharacter owner, int stringId, Object[] textParts) {
+        super(owner, MessageType.ERROR, new Date());
+        this.text = null;
+        this.stringId = stringId;
+        this.textParts = textParts;
     }
 
     @Override
     protected String getText(Context context) {
-        return text;
+        return text != null ? text : formatText(context, stringId, textParts);
     }
 
     @Override
@@ -17,10 +17,21 @@ public class MessageEntry extends ChatEntry {
     }
 
     public MessageEntry(FCharacter owner, String text, Date date) {
-        super(owner, MessageType.MESSAGE, date);
+        this(owner, text, date.getTime());
+    }
+
+    public MessageEntry(FCharacter owner, String text, long time) {
+        super(owner, MessageType.MESSAGE, time);
         this.text = text;
     }
 
+    /**
+     * Text as written, without any formatting.
+     */
+    public String getRawText() {
+        return text;
+    }
+
     @Override
     protected String getText(Context context) {
         return text;
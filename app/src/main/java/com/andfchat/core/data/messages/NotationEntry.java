@@ -11,7 +11,10 @@ public class NotationEntry extends ChatEntry {
 
     private static final long serialVersionUID = 1L;
 
+    // Either the text or a string resource with the parts to format it, formatted only when shown or exported
     private final String text;
+    private final int stringId;
+    private final Object[] textParts;
 
     public NotationEntry(FCharacter owner, String text) {
         this(owner, text, new Date());
@@ -20,13 +23,25 @@ public class NotationEntry extends ChatEntry {
     public NotationEntry(FCharacter owner, String text, Date date) {
         super(owner, MessageType.NOTATION, date);
         this.text = text;
+        this.stringId = 0;
+        this.textParts = null;
+    }
 
-        delimiterBetweenNameAndText = " ";
+    public NotationEntry(FCharacter owner, int stringId, Object[] textParts, Date date) {
+        super(owner, MessageType.NOTATION, date);
+        this.text = null;
+        this.stringId = stringId;
+        this.textParts = textParts;
+    }
+
+    @Override
+    protected String getDelimiterBetweenNameAndText() {
+        return " ";
     }
 
     @Override
     protected String getText(Context context) {
-        return text;
+        return text != null ? text : formatText(context, stringId, textParts);
     }
 
     @Override
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.data.messages;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import roboguice.util.Ln;
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.text.Spannable;
+import android.text.style.ImageSpan;
+
+/**
+ * Shared LRU cache for rendered chat entries, bounded by the estimated size of the spannables in bytes.
+ * Evicted entries are rendered again the next time they are displayed.
+ * @author AndFChat
+ */
+public class RenderCache {
+
+    // Rough costs used to estimate the size of a rendered entry
+    private final static int ENTRY_OVERHEAD = 128;
+    private final static int SPAN_SIZE = 48;
+    private final static int IMAGE_SPAN_SIZE = 16 * 1024;
+
+    private final static int MAX_BUDGET = 8 * 1024 * 1024;
+
+    private final LruCache<Long, Spannable> cache;
+    // Same content as the cache, looked up without changing the order of eviction. Changed with the cache under the
+    // lock of this.
+    private final Map<Long, Spannable> entries = new HashMap<Long, Spannable>();
+
+    private int hits = 0;
+    private int misses = 0;
+
+    public RenderCache() {
+        this((int)Math.min(Runtime.getRuntime().maxMemory() / 16, MAX_BUDGET));
+    }
+
+    public RenderCache(int maxBytes) {
+        cache = new LruCache<Long, Spannable>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Spannable value) {
+                return estimateSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Spannable oldValue, Spannable newValue) {
+                synchronized(RenderCache.this) {
+                    if (newValue == null) {
+                        entries.remove(key);
+                    }
+                }
+            }
+        };
+    }
+
+    public Spannable get(ChatEntry entry) {
+        return get(entry.getEntryId());
+    }
+
+    /**
+     * Rendered text shared by several entries, the key has to be negative to not collide with entry ids.
+     */
+    public Spannable getShared(long key) {
+        return get(key);
+    }
+
+    private Spannable get(long key) {
+        Spannable text = cache.get(key);
+        synchronized(this) {
+            if (text != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Same as {@link #get(ChatEntry)} without counting as hit or miss and without keeping the entry longer.
+     */
+    public Spannable peek(ChatEntry entry) {
+        // The id is resolved before taking the lock, entries might hold their own lock while calling the cache
+        return peek(entry.getEntryId());
+    }
+
+    private synchronized Spannable peek(long key) {
+        return entries.get(key);
+    }
+
+    public boolean contains(ChatEntry entry) {
+        return peek(entry) != null;
+    }
+
+    public void put(ChatEntry entry, Spannable text) {
+        put(entry.getEntryId(), text);
+    }
+
+    public void putShared(long key, Spannable text) {
+        put(key, text);
+    }
+
+    private synchronized void put(long key, Spannable text) {
+        entries.put(key, text);
+        // Entries evicted to make room are removed by entryRemoved
+        cache.put(key, text);
+    }
+
+    public void remove(ChatEntry entry) {
+        remove(entry.getEntryId());
+    }
+
+    private synchronized void remove(long key) {
+        cache.remove(key);
+    }
+
+    public synchronized void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Shrinks the cache according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cache.trimToSize(cache.maxSize() / 2);
+        }
+        Ln.d("Trimmed render cache (level " + level + "): " + getStatistics());
+    }
+
+    public synchronized int hitCount() {
+        return hits;
+    }
+
+    public synchronized int missCount() {
+        return misses;
+    }
+
+    public int evictionCount() {
+        return cache.evictionCount();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+    public String getStatistics() {
+        return "[size: " + size() + "/" + maxSize() + " bytes, hits: " + hitCount() + ", misses: " + missCount() + ", evictions: " + evictionCount() + "]";
+    }
+
+    protected static int estimateSize(Spannable text) {
+        int size = ENTRY_OVERHEAD + text.length() * 2;
+
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+        for (Object span : spans) {
+            size += span instanceof ImageSpan ? IMAGE_SPAN_SIZE : SPAN_SIZE;
+        }
+
+        return size;
+    }
+}
@@ -18,20 +18,14 @@
 
 package com.andfchat.core.util;
 
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
 import roboguice.RoboGuice;
 import roboguice.util.Ln;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Typeface;
-import android.graphics.drawable.Drawable;
-import android.graphics.drawable.StateListDrawable;
-import android.text.Html;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -48,14 +42,10 @@ import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
 import android.util.Log;
 import android.webkit.URLUtil;
-import android.widget.ImageView;
 
-import com.andfchat.R;
 import com.andfchat.core.data.ChatroomManager;
+import com.andfchat.frontend.util.ImageLoader;
 import com.andfchat.frontend.util.OpenChatroomSpan;
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.animation.GlideAnimation;
-import com.bumptech.glide.request.target.SimpleTarget;
 import com.google.inject.Inject;
 
 public class BBCodeReader {
@@ -106,21 +96,21 @@ public class BBCodeReader {
         }
     }
 
-    private static final String NEW_LINE_DELIMITER = "NEW_LINE_DELIMITER";
-
     public static Spannable createSpannableWithBBCode(String text, Context context) {
+        return createSpannableWithBBCode(text, context, true);
+    }
+
+    /**
+     * @param withImages false to keep the names of icons and eicons as text instead of loading their images
+     */
+    public static Spannable createSpannableWithBBCode(String text, Context context, boolean withImages) {
         // Position in text
         int pointer = 0;
 
         List<Span> spans = new ArrayList<Span>();
 
-        // Save new lines
-        text = text.replace("\n", NEW_LINE_DELIMITER);
-
         // Fixing html escapes
-        text =  Html.fromHtml(text).toString();
-
-        text = text.replace(NEW_LINE_DELIMITER, "\n");
+        text = HtmlEntityDecoder.decode(text);
 
         boolean noParse = false;
         while (pointer < text.length()) {
@@ -192,7 +182,7 @@ public class BBCodeReader {
                     span.setEnd(span.end + linkTextSpan.length());
                 }
                 Ln.v("ADD span: " + span.toString());
-                textSpan = span.addToText(textSpan, context);
+                textSpan = span.addToText(textSpan, context, withImages);
             }
         }
 
@@ -213,34 +203,6 @@ public class BBCodeReader {
         return polishedText;
     }
 
-    public static String modifyUrls(String text, String urlIndicator) {
-        String newText = "";
-
-        if (text != null && text.contains(urlIndicator)) {
-
-            String[] parts = text.split(" ");
-
-            for (String part : parts) {
-                if (part.startsWith(urlIndicator)) {
-                    try {
-                        URL url = new URL(part);
-                        part = "[url="+part+"]" + url.getHost() + "[/url]";
-                        Ln.d("done");
-                    }
-                    catch (MalformedURLException e) {
-                        Ln.d("error");
-                    }
-                }
-                newText += part + " ";
-            }
-        }
-        else {
-            return text;
-        }
-
-        return newText;
-    }
-
     public static class Span {
 
         public final int start;
@@ -252,7 +214,6 @@ public class BBCodeReader {
         private String key = null;
         private String replacement = null;
         private Spannable text;
-        StateListDrawable icon = new StateListDrawable();
 
         @Inject
         private ChatroomManager chatroomManager;
@@ -272,6 +233,10 @@ public class BBCodeReader {
         }
 
         public Spannable addToText(Spannable aText, final Context context) {
+            return addToText(aText, context, true);
+        }
+
+        public Spannable addToText(Spannable aText, final Context context, boolean withImages) {
             text = aText;
             /*if (bbCodeType == BBCodeType.UNPARSED) {
                 text.setSpan(new StyleSpan(Typeface.NORMAL), start, end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
@@ -323,68 +288,20 @@ public class BBCodeReader {
                 }
             }
             else if (bbCodeType == BBCodeType.ICON) {
-                String url = "https://static.f-list.net/images/avatar/" + text.subSequence(start, end).toString().toLowerCase().replace(" ", "%20") + ".png";
-                String link = "http://f-list.net/c/" + text.subSequence(start, end).toString().toLowerCase().replace(" ", "%20");
-
-                Ln.d("Icon Url: " + url);
-                if (URLUtil.isValidUrl(url)) {
-                    icon.addState(new int[]{android.R.attr.state_first}, context.getResources().getDrawable(R.drawable.ic_chat_priv));
-                    icon.setState(new int[]{android.R.attr.state_first});
-
-                    Glide.with(context)
-                            .load(url)
-                            .asBitmap()
-                            .into(new SimpleTarget<Bitmap>(100,100) {
-                                @Override
-                                public void onResourceReady(Bitmap resource, GlideAnimation glideAnimation) {
-                                    ImageView image = new ImageView(context);
-                                    image.setImageBitmap(resource); // Possibly runOnUiThread()
-                                    Drawable dImage = image.getDrawable();
-                                    dImage.setBounds(0, 0, dImage.getIntrinsicWidth(), dImage.getIntrinsicHeight());
-                                    icon.addState(new int[]{android.R.attr.state_last}, dImage);
-                                    icon.setState(new int[]{android.R.attr.state_last});
-                                    Ln.i("Does this even happen?");
-                                }
-                            });
-                    icon.setVisible(true, false);
-                    if (icon != null) {
-                        icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
-                        ImageSpan iconSpan = new ImageSpan(icon);
-                        text.setSpan(iconSpan, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        if (URLUtil.isValidUrl(link)) {
-                            text.setSpan(new URLSpan(link), start, end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                        }
-                    }
+                String name = text.subSequence(start, end).toString();
+                String link = "http://f-list.net/c/" + name.toLowerCase().replace(" ", "%20");
+
+                if (withImages) {
+                    text.setSpan(new ImageSpan(ImageLoader.getAvatarIcon(context, name)), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                if (URLUtil.isValidUrl(link)) {
+                    text.setSpan(new URLSpan(link), start, end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
                 }
             }
             else if (bbCodeType == BBCodeType.EICON) {
-                String url = "https://static.f-list.net/images/eicon/" + text.subSequence(start, end).toString().toLowerCase().replace(" ", "%20") + ".png";
-
-                Ln.d("Icon Url: " + url);
-                if (URLUtil.isValidUrl(url)) {
-                    icon.addState(new int[]{android.R.attr.state_first}, context.getResources().getDrawable(R.drawable.ic_chat_priv));
-                    icon.setState(new int[]{android.R.attr.state_first});
-
-                    Glide.with(context)
-                            .load(url)
-                            .asBitmap()
-                            .into(new SimpleTarget<Bitmap>(100,100) {
-                                @Override
-                                public void onResourceReady(Bitmap resource, GlideAnimation glideAnimation) {
-                                    ImageView image = new ImageView(context);
-                                    image.setImageBitmap(resource); // Possibly runOnUiThread()
-                                    Drawable dImage = image.getDrawable();
-                                    dImage.setBounds(0, 0, dImage.getIntrinsicWidth(), dImage.getIntrinsicHeight());
-                                    icon.addState(new int[]{android.R.attr.state_last}, dImage);
-                                    icon.setState(new int[]{android.R.attr.state_last});
-                                    Ln.i("Does this even happen?");
-                                }
-                            });
-                    icon.setVisible(true, false);
-                    if (icon != null) {
-                        icon.setBounds(0, 0, icon.getIntrinsicWidth(), icon.getIntrinsicHeight());
-                        text.setSpan(new ImageSpan(icon), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
+                if (withImages) {
+                    String name = text.subSequence(start, end).toString();
+                    text.setSpan(new ImageSpan(ImageLoader.getEicon(context, name)), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
                 }
             }
             else if (bbCodeType == BBCodeType.SUPERSCRIPT) {
@@ -147,6 +147,18 @@ public class Console {
         }
     }
 
+    /**
+     * True if the text following the command token is the name of a character.
+     */
+    public boolean takesCharacterName(String token) {
+        for (TextCommand command : availableCommands) {
+            if (command.fitToCommand(token)) {
+                return command.takesCharacterName();
+            }
+        }
+        return false;
+    }
+
     private void showHelp() {
 
         String message = "";
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.util;
+
+/**
+ * Unescapes the html entities used by the server (&amp;amp; &amp;lt; &amp;gt; &amp;quot; ...) and numeric
+ * character references. Replaces Html.fromHtml(text).toString(), which parses the whole text as html.
+ * Texts without entities are returned without copying.
+ * @author AndFChat
+ */
+public class HtmlEntityDecoder {
+
+    // Longest supported entity name, "nbsp"/"apos"/"quot"
+    private static final int MAX_NAME_LENGTH = 4;
+    // Longest numeric reference, "#x10FFFF"
+    private static final int MAX_NUMERIC_LENGTH = 8;
+
+    public static String decode(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        int ampersand = text.indexOf('&');
+        if (ampersand == -1) {
+            return text;
+        }
+
+        int length = text.length();
+        StringBuilder result = new StringBuilder(length);
+        result.append(text, 0, ampersand);
+
+        int position = ampersand;
+        while (position < length) {
+            char c = text.charAt(position);
+            if (c != '&') {
+                result.append(c);
+                position++;
+                continue;
+            }
+
+            int semicolon = -1;
+            int limit = Math.min(length, position + 2 + MAX_NUMERIC_LENGTH);
+            for (int i = position + 1; i < limit; i++) {
+                if (text.charAt(i) == ';') {
+                    semicolon = i;
+                    break;
+                }
+            }
+
+            int decoded = semicolon != -1 ? decodeEntity(text, position + 1, semicolon) : -1;
+            if (decoded != -1) {
+                result.appendCodePoint(decoded);
+                position = semicolon + 1;
+            } else {
+                // Not an entity, keep the ampersand as it is
+                result.append(c);
+                position++;
+            }
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Decodes the entity between start and end (without '&' and ';'), returns -1 if it is unknown.
+     */
+    private static int decodeEntity(String text, int start, int end) {
+        int length = end - start;
+        if (length < 2) {
+            return -1;
+        }
+
+        if (text.charAt(start) == '#') {
+            return decodeNumber(text, start + 1, end);
+        }
+
+        if (length > MAX_NAME_LENGTH) {
+            return -1;
+        }
+
+        if (text.regionMatches(start, "amp", 0, length) && length == 3) {
+            return '&';
+        } else if (text.regionMatches(start, "lt", 0, length) && length == 2) {
+            return '<';
+        } else if (text.regionMatches(start, "gt", 0, length) && length == 2) {
+            return '>';
+        } else if (text.regionMatches(start, "quot", 0, length) && length == 4) {
+            return '"';
+        } else if (text.regionMatches(start, "apos", 0, length) && length == 4) {
+            return '\'';
+        } else if (text.regionMatches(start, "nbsp", 0, length) && length == 4) {
+            return '\u00A0';
+        }
+
+        return -1;
+    }
+
+    private static int decodeNumber(String text, int start, int end) {
+        int radix = 10;
+        if (start < end && (text.charAt(start) == 'x' || text.charAt(start) == 'X')) {
+            radix = 16;
+            start++;
+        }
+
+        if (start == end) {
+            return -1;
+        }
+
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), radix);
+            if (digit == -1) {
+                return -1;
+            }
+            value = value * radix + digit;
+            if (value > Character.MAX_CODE_POINT) {
+                return -1;
+            }
+        }
+
+        if (value == 0 || (value >= Character.MIN_SURROGATE && value <= Character.MAX_SURROGATE)) {
+            return -1;
+        }
+        return value;
+    }
+}
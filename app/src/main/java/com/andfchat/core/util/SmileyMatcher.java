@@ -0,0 +1,128 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.util;
+
+/**
+ * Finds all tokens of a set (like ":heart:") in a text with a single pass, using a trie over the tokens.
+ * Matches are reported from left to right, the longest token wins and matches never overlap.
+ * @author AndFChat
+ */
+public class SmileyMatcher {
+
+    public interface MatchListener {
+        void onMatch(int start, int end, int value);
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private int value = -1;
+
+        private Node get(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAdd(char key) {
+            Node node = get(key);
+            if (node == null) {
+                node = new Node();
+
+                char[] newKeys = new char[keys.length + 1];
+                Node[] newChildren = new Node[children.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newKeys[keys.length] = key;
+                newChildren[children.length] = node;
+
+                // Children first, lookups are bound by keys.length
+                children = newChildren;
+                keys = newKeys;
+            }
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private int size = 0;
+
+    /**
+     * Adds a token, the value is reported on matches. Adding an existing token replaces its value.
+     */
+    public synchronized void add(String token, int value) {
+        if (token == null || token.length() == 0 || value < 0) {
+            throw new IllegalArgumentException("Token has to be non empty and value not negative!");
+        }
+
+        Node node = root;
+        for (int i = 0; i < token.length(); i++) {
+            node = node.getOrAdd(token.charAt(i));
+        }
+
+        if (node.value == -1) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Reports every token found in the text to the listener.
+     * @return amount of matches
+     */
+    public int find(CharSequence text, MatchListener listener) {
+        int matches = 0;
+        int length = text.length();
+        int position = 0;
+
+        while (position < length) {
+            Node node = root;
+            int matchEnd = -1;
+            int matchValue = -1;
+
+            for (int i = position; i < length; i++) {
+                node = node.get(text.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.value != -1) {
+                    matchEnd = i + 1;
+                    matchValue = node.value;
+                }
+            }
+
+            if (matchEnd != -1) {
+                listener.onMatch(position, matchEnd, matchValue);
+                matches++;
+                position = matchEnd;
+            } else {
+                position++;
+            }
+        }
+
+        return matches;
+    }
+}
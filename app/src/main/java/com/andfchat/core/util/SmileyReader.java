@@ -18,54 +18,83 @@
 
 package com.andfchat.core.util;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import com.andfchat.R;
-
 import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
 import android.text.Spannable;
 import android.text.style.ImageSpan;
+import android.util.SparseArray;
+
+import roboguice.util.Ln;
 
 public class SmileyReader {
-    
-    private static final Map<Pattern, Integer> emoticons = new HashMap<Pattern, Integer>();
-    
-    static {
-        emoticons.put(Pattern.compile(Pattern.quote(":heart:")), R.drawable.emo_heart);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-angry:")), R.drawable.emo_angry);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-blush:")), R.drawable.emo_blush);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-cry:")), R.drawable.emo_cry);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-evil:")), R.drawable.emo_evil);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-gasp:")), R.drawable.emo_gasp);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-happy:")), R.drawable.emo_happy);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-meh:")), R.drawable.emo_meh);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-neutral:")), R.drawable.emo_neutral);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-ooh:")), R.drawable.emo_ooh);        
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-purr:")), R.drawable.emo_purr);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-roll:")), R.drawable.emo_roll);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-sad:")), R.drawable.emo_sad);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-sick:")), R.drawable.emo_sick);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-smile:")), R.drawable.emo_smile);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-whee:")), R.drawable.emo_whee);        
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-wink:")), R.drawable.emo_wink);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-wtf:")), R.drawable.emo_wtf);
-        emoticons.put(Pattern.compile(Pattern.quote(":lif-yawn:")), R.drawable.emo_yawn);
-        emoticons.put(Pattern.compile(Pattern.quote(":cake:")), R.drawable.emo_cake);
+
+    private static final SmileyMatcher emoticons = new SmileyMatcher();
+
+    // Loaded drawables, shared by all spans of the same smiley
+    private static final SparseArray<Drawable> drawables = new SparseArray<Drawable>();
+
+    public static Spannable addSmileys(final Context context, final Spannable text) {
+        if (text == null) {
+            return null;
+        }
+
+        emoticons.find(text, new SmileyMatcher.MatchListener() {
+            @Override
+            public void onMatch(int start, int end, int drawableId) {
+                Drawable drawable = getDrawable(context, drawableId);
+                if (drawable != null) {
+                    text.setSpan(new ImageSpan(drawable), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+        });
+
+        return text;
     }
-    
-    public static Spannable addSmileys(Context context, Spannable text) {
-        for (Entry<Pattern, Integer> entry : emoticons.entrySet()) {
-            Matcher matcher = entry.getKey().matcher(text);
-            while (matcher.find()) {
-                text.setSpan(new ImageSpan(context, entry.getValue()), matcher.start(), matcher.end(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+    /**
+     * Adds a smiley, replacing the drawable if the token is already known.
+     */
+    public static void addSmiley(String token, int drawableId) {
+        emoticons.add(token, drawableId);
+    }
+
+    /**
+     * Loads a smiley set from a string-array resource, each item is given as "token=drawable_name".
+     */
+    public static void loadSmileys(Context context, int tableId) {
+        Resources resources = context.getResources();
+        for (String item : resources.getStringArray(tableId)) {
+            int delimiter = item.lastIndexOf('=');
+            if (delimiter <= 0) {
+                Ln.w("Can't read smiley: '" + item + "'");
+                continue;
+            }
+
+            String token = item.substring(0, delimiter).trim();
+            int drawableId = resources.getIdentifier(item.substring(delimiter + 1).trim(), "drawable", context.getPackageName());
+            if (drawableId != 0) {
+                addSmiley(token, drawableId);
+            } else {
+                Ln.w("Can't find drawable for smiley: '" + item + "'");
+            }
+        }
+    }
+
+    private static Drawable getDrawable(Context context, int drawableId) {
+        synchronized(drawables) {
+            Drawable drawable = drawables.get(drawableId);
+            if (drawable == null) {
+                try {
+                    drawable = context.getApplicationContext().getResources().getDrawable(drawableId);
+                    drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+                    drawables.put(drawableId, drawable);
+                } catch (Resources.NotFoundException e) {
+                    Ln.w("Can't load smiley drawable: " + drawableId);
+                }
             }
+            return drawable;
         }
-                
-        return text;        
     }
 
 }
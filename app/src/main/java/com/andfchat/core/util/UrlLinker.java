@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.core.util;
+
+/**
+ * Wraps plain http://, https:// and www. links of a message into [url] BBCode, displaying only the host.
+ * Links already inside [url] or [noparse] tags are left untouched. The text is scanned once.
+ * @author AndFChat
+ */
+public class UrlLinker {
+
+    private static final String[] SCHEMES = {"http://", "https://", "www."};
+
+    // Characters which are not part of a link at its end, like in "see http://f-list.net."
+    private static final String TRAILING_PUNCTUATION = ".,;:!?'";
+
+    public static String linkUrls(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        StringBuilder result = null;
+        int length = text.length();
+        int copied = 0;
+        int position = 0;
+
+        while (position < length) {
+            char c = text.charAt(position);
+
+            if (c == '[') {
+                int skipTo = skipTag(text, position);
+                position = skipTo != -1 ? skipTo : position + 1;
+                continue;
+            }
+
+            int schemeLength = 0;
+            if ((c == 'h' || c == 'H' || c == 'w' || c == 'W') && isLinkStart(text, position)) {
+                schemeLength = schemeLength(text, position);
+            }
+
+            if (schemeLength > 0) {
+                int hostStart = position + schemeLength;
+                int end = findLinkEnd(text, hostStart);
+                int hostEnd = findHostEnd(text, hostStart, end);
+
+                if (hostEnd > hostStart) {
+                    if (result == null) {
+                        result = new StringBuilder(length + 32);
+                    }
+
+                    result.append(text, copied, position);
+                    result.append("[url=");
+                    if (schemeLength == SCHEMES[2].length()) {
+                        // www. links have no scheme
+                        result.append("http://");
+                    }
+                    result.append(text, position, end);
+                    result.append(']');
+                    result.append(text, schemeLength == SCHEMES[2].length() ? position : hostStart, hostEnd);
+                    result.append("[/url]");
+
+                    copied = end;
+                    position = end;
+                    continue;
+                }
+            }
+
+            position++;
+        }
+
+        if (result == null) {
+            return text;
+        }
+
+        result.append(text, copied, length);
+        return result.toString();
+    }
+
+    /**
+     * Returns the position after a [url] or [noparse] block starting at position, or -1 if there is none.
+     */
+    private static int skipTag(String text, int position) {
+        String closingTag;
+        if (startsWithTag(text, position, "url")) {
+            closingTag = "[/url]";
+        } else if (startsWithTag(text, position, "noparse")) {
+            closingTag = "[/noparse]";
+        } else {
+            return -1;
+        }
+
+        int end = indexOfIgnoreCase(text, closingTag, position);
+        if (end != -1) {
+            return end + closingTag.length();
+        }
+
+        // Unclosed tag, at least leave the tag itself untouched
+        end = text.indexOf(']', position);
+        return end != -1 ? end + 1 : text.length();
+    }
+
+    private static boolean startsWithTag(String text, int position, String tag) {
+        int tagEnd = position + 1 + tag.length();
+        if (tagEnd >= text.length() || !text.regionMatches(true, position + 1, tag, 0, tag.length())) {
+            return false;
+        }
+
+        char next = text.charAt(tagEnd);
+        return next == ']' || next == '=';
+    }
+
+    private static boolean isLinkStart(String text, int position) {
+        if (position == 0) {
+            return true;
+        }
+
+        char previous = text.charAt(position - 1);
+        return !Character.isLetterOrDigit(previous) && previous != '=' && previous != '/' && previous != '.' && previous != '@'
+                && previous != '-' && previous != '_';
+    }
+
+    private static int schemeLength(String text, int position) {
+        for (String scheme : SCHEMES) {
+            if (text.regionMatches(true, position, scheme, 0, scheme.length())) {
+                return scheme.length();
+            }
+        }
+        return 0;
+    }
+
+    private static int findLinkEnd(String text, int position) {
+        int end = position;
+        int openParentheses = 0;
+
+        while (end < text.length()) {
+            char c = text.charAt(end);
+            if (Character.isWhitespace(c) || c == '[' || c == ']' || c == '<' || c == '>' || c == '"') {
+                break;
+            }
+
+            if (c == '(') {
+                openParentheses++;
+            } else if (c == ')') {
+                if (openParentheses == 0) {
+                    // Closing parenthesis of surrounding text
+                    break;
+                }
+                openParentheses--;
+            }
+            end++;
+        }
+
+        while (end > position && TRAILING_PUNCTUATION.indexOf(text.charAt(end - 1)) != -1) {
+            end--;
+        }
+
+        return end;
+    }
+
+    private static int findHostEnd(String text, int position, int end) {
+        int hostEnd = position;
+        while (hostEnd < end) {
+            char c = text.charAt(hostEnd);
+            if (c == '/' || c == '?' || c == '#' || c == ':') {
+                break;
+            }
+            hostEnd++;
+        }
+        return hostEnd;
+    }
+
+    private static int indexOfIgnoreCase(String text, String needle, int from) {
+        int last = text.length() - needle.length();
+        for (int i = from; i <= last; i++) {
+            if (text.regionMatches(true, i, needle, 0, needle.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -31,6 +31,7 @@ public class Ban extends TextCommand {
 
     public Ban() {
         allowedIn = new ChatroomType[]{ChatroomType.PRIVATE_CHANNEL, ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
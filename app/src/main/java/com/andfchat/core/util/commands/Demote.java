@@ -29,6 +29,7 @@ public class Demote extends TextCommand{
 
     public Demote() {
         allowedIn = new Chatroom.ChatroomType[]{Chatroom.ChatroomType.PRIVATE_CHANNEL, Chatroom.ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
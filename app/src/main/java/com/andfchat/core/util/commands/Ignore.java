@@ -29,6 +29,7 @@ public class Ignore extends TextCommand {
 
     public Ignore() {
         allowedIn = ChatroomType.values();
+        takesCharacterName = true;
     }
 
     @Inject
@@ -31,6 +31,7 @@ public class InviteToChannel extends TextCommand {
 
     public InviteToChannel() {
         allowedIn = new ChatroomType[]{ChatroomType.PRIVATE_CHANNEL, ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
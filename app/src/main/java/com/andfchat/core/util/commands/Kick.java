@@ -31,6 +31,7 @@ public class Kick extends TextCommand {
 
     public Kick() {
         allowedIn = new ChatroomType[]{ChatroomType.PRIVATE_CHANNEL, ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
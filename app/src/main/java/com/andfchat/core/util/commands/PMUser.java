@@ -47,6 +47,7 @@ public class PMUser extends TextCommand {
 
     public PMUser() {
         allowedIn = ChatroomType.values();
+        takesCharacterName = true;
     }
 
     @Override
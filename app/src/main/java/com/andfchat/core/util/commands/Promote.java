@@ -29,6 +29,7 @@ public class Promote extends TextCommand {
 
     public Promote() {
         allowedIn = new Chatroom.ChatroomType[]{Chatroom.ChatroomType.PRIVATE_CHANNEL, Chatroom.ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
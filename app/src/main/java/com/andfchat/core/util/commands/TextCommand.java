@@ -34,11 +34,17 @@ public abstract class TextCommand {
     protected FlistWebSocketConnection connection;
 
     protected ChatroomType[] allowedIn;
+    // The text given to the command is the name of a character
+    protected boolean takesCharacterName = false;
 
     public abstract String getDescription();
     public abstract boolean fitToCommand(String token);
     public abstract void runCommand(String token, String text);
 
+    public boolean takesCharacterName() {
+        return takesCharacterName;
+    }
+
     public boolean isAllowedIn(ChatroomType type) {
         for (ChatroomType otherType : allowedIn) {
             if (otherType == type) {
@@ -31,6 +31,7 @@ public class Unban extends TextCommand {
 
     public Unban() {
         allowedIn = new ChatroomType[]{ChatroomType.PRIVATE_CHANNEL, ChatroomType.PUBLIC_CHANNEL};
+        takesCharacterName = true;
     }
 
     @Inject
@@ -29,6 +29,7 @@ public class Unignore extends TextCommand{
 
     public Unignore() {
         allowedIn = ChatroomType.values();
+        takesCharacterName = true;
     }
 
     @Inject
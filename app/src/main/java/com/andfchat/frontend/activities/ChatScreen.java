@@ -18,11 +18,6 @@
 
 package com.andfchat.frontend.activities;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-
 import net.sourcerer.quickaction.ActionItem;
 import net.sourcerer.quickaction.CheckActionItem;
 import net.sourcerer.quickaction.PopUpAlignment;
@@ -43,17 +38,14 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Point;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.text.Html;
 import android.text.Spannable;
 import android.text.method.LinkMovementMethod;
 import android.view.Display;
@@ -81,6 +73,7 @@ import com.andfchat.core.data.history.HistoryManager;
 import com.andfchat.core.data.messages.AdEntry;
 import com.andfchat.core.data.messages.ChatEntry;
 import com.andfchat.core.data.messages.ChatEntryFactory;
+import com.andfchat.core.util.HtmlEntityDecoder;
 import com.andfchat.core.util.SmileyReader;
 import com.andfchat.core.util.Version;
 import com.andfchat.frontend.application.AndFChatApplication;
@@ -96,12 +89,13 @@ import com.andfchat.frontend.fragments.ChatInputFragment;
 import com.andfchat.frontend.fragments.UserListFragment;
 import com.andfchat.frontend.menu.AboutAction;
 import com.andfchat.frontend.menu.DisconnectAction;
+import com.andfchat.frontend.menu.ExportAction;
 import com.andfchat.frontend.menu.FriendListAction;
 import com.andfchat.frontend.menu.JoinChannelAction;
+import com.andfchat.frontend.menu.SearchHistoryAction;
 import com.andfchat.frontend.popup.FListCharSelectionPopup;
 import com.andfchat.frontend.popup.FListLoginPopup;
 import com.andfchat.frontend.popup.FListPopupWindow;
-import com.andfchat.frontend.util.Exporter;
 import com.andfchat.frontend.util.FlistAlertDialog;
 import com.google.inject.Inject;
 import com.readystatesoftware.systembartint.SystemBarTintManager;
@@ -189,7 +183,7 @@ public class ChatScreen extends RoboActionBarActivity implements ChatroomEventLi
 
         // Register fragments
         eventManager.register((ChatroomEventListener) chatFragment);
-        eventManager.register((MessageEventListener) chatFragment);
+        eventManager.register((MessageEventListener) chatFragment, AndFChatEventManager.Delivery.INLINE);
         eventManager.register((ChatroomEventListener) userList);
         eventManager.register((UserEventListener) userList);
         eventManager.register(channelList);
@@ -555,7 +549,7 @@ public class ChatScreen extends RoboActionBarActivity implements ChatroomEventLi
                 setChannelTitle("OFFLINE");
             }
             else if (chatroom.isPrivateChat() && chatroom.getRecipient().getStatusMsg() != null) {
-                String statusTitle = Html.fromHtml(chatroom.getRecipient().getStatusMsg()).toString();
+                String statusTitle = HtmlEntityDecoder.decode(chatroom.getRecipient().getStatusMsg());
                 int pointer = 0;
                 while (pointer < statusTitle.length()) {
                     int start = statusTitle.indexOf("[", pointer);
@@ -586,42 +580,11 @@ public class ChatScreen extends RoboActionBarActivity implements ChatroomEventLi
     }
 
     public void exportChat() {
-        int permissionCheck = ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE);
-
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.WRITE_EXTERNAL_STORAGE}, MY_PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE);
         } else {
-            String filename = "FListLog-" + chatroomManager.getActiveChat().getName() + "-" + System.currentTimeMillis() + ".txt";
-            File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-            File file = new File(path, filename);
-
-            try {
-                path.mkdirs();
-
-                OutputStream os = new FileOutputStream(file);
-                os.write(Exporter.exportText(this, chatroomManager.getActiveChat()));
-                os.close();
-
-                ChatEntry entry = entryFactory.getNotation(charManager.findCharacter(CharacterManager.USER_SYSTEM), R.string.exported, new Object[]{filename});
-                chatroomManager.addMessage(chatroomManager.getActiveChat(), entry);
-
-                // Tell the media scanner about the new file so that it is
-                // immediately available to the user.
-                MediaScannerConnection.scanFile(this,
-                        new String[]{file.toString()}, null,
-                        new MediaScannerConnection.OnScanCompletedListener() {
-                            @Override
-                            public void onScanCompleted(String path, Uri uri) {
-
-                            }
-                        });
-            } catch (IOException e) {
-                Ln.w("ExternalStorage", "Error writing " + file, e);
-                ChatEntry entry = entryFactory.getError(charManager.findCharacter(CharacterManager.USER_SYSTEM), R.string.export_failed);
-                chatroomManager.addMessage(chatroomManager.getActiveChat(), entry);
-            }
+            ExportAction.open(this, chatFragment.getView(), chatroomManager.getActiveChat());
         }
-
     }
 
     @Override
@@ -752,6 +715,9 @@ public class ChatScreen extends RoboActionBarActivity implements ChatroomEventLi
                 DisconnectAction.disconnect(this);
                 //loginPopup.show(getFragmentManager(), "login_fragment");
                 return true;
+            case R.id.action_search_history:
+                SearchHistoryAction.open(this, chatFragment.getView(), chatFragment);
+                return true;
             case R.id.action_open_settings:
                 startActivity(new Intent(this, Settings.class));
                 return true;
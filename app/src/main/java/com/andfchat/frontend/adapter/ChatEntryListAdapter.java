@@ -19,24 +19,53 @@
 package com.andfchat.frontend.adapter;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.text.method.LinkMovementMethod;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.andfchat.R;
 import com.andfchat.core.data.messages.AdEntry;
 import com.andfchat.core.data.messages.ChatEntry;
-import com.andfchat.core.data.messages.ChatEntryFactory;
 
-public class ChatEntryListAdapter extends ArrayAdapter<ChatEntry> {
+/**
+ * Transcript of the active chatroom. Entries have stable ids, new messages are announced as range inserts and
+ * switching between rooms only updates the rows that changed.
+ */
+public class ChatEntryListAdapter extends RecyclerView.Adapter<ChatEntryListAdapter.ViewHolder> {
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+
+        private final View backgroundView;
+        private final TextView textView;
+        private final ImageView iconImage;
+
+        public ViewHolder(View rowView) {
+            super(rowView);
+
+            backgroundView = rowView.findViewById(R.id.messageItem);
+            textView = (TextView)rowView.findViewById(R.id.itemText);
+            iconImage = (ImageView)rowView.findViewById(R.id.itemIcon);
+
+            // Follow links to browser
+            textView.setMovementMethod(LinkMovementMethod.getInstance());
+        }
+    }
+
+    private final Context context;
+    private final LayoutInflater inflater;
+    private final List<ChatEntry> entries = new ArrayList<ChatEntry>();
 
     private final int colorLine;
     private final int colorOwned;
@@ -46,14 +75,11 @@ public class ChatEntryListAdapter extends ArrayAdapter<ChatEntry> {
 
     private float textSize;
 
-    private ChatEntryFactory.AdClickListener clickListener;
-
     private boolean showAdText = false;
 
     public ChatEntryListAdapter(Context context, float textSize) {
-        super(context, R.layout.list_item_message, new ArrayList<ChatEntry>());
-
-        //this.clickListener = clickListener; //Variable assigned to itself??
+        this.context = context;
+        this.inflater = LayoutInflater.from(context);
 
         // Load theme colors
         TypedArray styles = context.getTheme().obtainStyledAttributes(new int[]{
@@ -72,6 +98,8 @@ public class ChatEntryListAdapter extends ArrayAdapter<ChatEntry> {
         this.textSize = textSize;
 
         styles.recycle();
+
+        setHasStableIds(true);
     }
 
     public void setShowAdText(boolean showAdText) {
@@ -79,65 +107,177 @@ public class ChatEntryListAdapter extends ArrayAdapter<ChatEntry> {
     }
 
     @Override
-    public View getView(final int position, View convertView, ViewGroup parent) {
-        View rowView = convertView;
-
-        if (rowView == null) {
-            LayoutInflater inflater = (LayoutInflater)getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            rowView = inflater.inflate(R.layout.list_item_message, null);
-        }
-
-        ChatEntry entry = getItem(position);
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(inflater.inflate(R.layout.list_item_message, parent, false));
+    }
 
-        TextView textView = (TextView)rowView.findViewById(R.id.itemText);
-        textView.setText(entry.getChatMessage(getContext()));
-        // Set text size
-        textView.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize);
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        ChatEntry entry = entries.get(position);
 
-        View backgroundView = rowView.findViewById(R.id.messageItem);
         // Adding the right colour
         switch (entry.getMessageType()) {
         case WARNING:
-            backgroundView.setBackgroundColor(colorWarning);
+            holder.backgroundView.setBackgroundColor(colorWarning);
             break;
         case ERROR:
-            backgroundView.setBackgroundColor(colorAttention);
+            holder.backgroundView.setBackgroundColor(colorAttention);
             break;
         case MESSAGE:
-            if (getItem(position).isOwned()) {
-                backgroundView.setBackgroundColor(colorOwned);
+            if (entry.isOwned()) {
+                holder.backgroundView.setBackgroundColor(colorOwned);
             }
             else {
-                backgroundView.setBackgroundColor(colorLine);
+                holder.backgroundView.setBackgroundColor(colorLine);
             }
             break;
         case EMOTE:
-            backgroundView.setBackgroundColor(colorLine);
+            holder.backgroundView.setBackgroundColor(colorLine);
             break;
         case AD:
             ((AdEntry)entry).setShowText(showAdText);
-            backgroundView.setBackgroundColor(colorSystem);
+            holder.backgroundView.setBackgroundColor(colorSystem);
             break;
         default:
-            backgroundView.setBackgroundColor(colorSystem);
+            holder.backgroundView.setBackgroundColor(colorSystem);
             break;
         }
 
-        textView.setText(entry.getChatMessage(getContext()));
-
-        // Follow links to browser
-        textView.setMovementMethod(LinkMovementMethod.getInstance());
+        // Set text size before the text, so it is only laid out once
+        holder.textView.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize);
+        holder.textView.setText(entry.getChatMessage(context));
 
-        ImageView iconImage = (ImageView)rowView.findViewById(R.id.itemIcon);
-        if (entry.getIcon() != null) {
-            iconImage.setVisibility(View.VISIBLE);
-            iconImage.setImageResource(entry.getIcon());
+        if (entry.getIcon() != 0) {
+            holder.iconImage.setVisibility(View.VISIBLE);
+            holder.iconImage.setImageResource(entry.getIcon());
         }
         else {
-            iconImage.setVisibility(View.GONE);
+            holder.iconImage.setVisibility(View.GONE);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return entries.get(position).getEntryId();
+    }
+
+    public ChatEntry getItem(int position) {
+        return entries.get(position);
+    }
+
+    /**
+     * Redraws the entry, true if it is displayed.
+     */
+    public boolean refresh(ChatEntry entry) {
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            if (entries.get(i) == entry) {
+                notifyItemChanged(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(ChatEntry entry) {
+        entries.add(entry);
+        notifyItemInserted(entries.size() - 1);
+    }
+
+    public void addAll(List<ChatEntry> newEntries) {
+        if (newEntries.isEmpty()) {
+            return;
         }
 
-        return rowView;
+        int start = entries.size();
+        entries.addAll(newEntries);
+        notifyItemRangeInserted(start, newEntries.size());
+    }
+
+    /**
+     * Adds older entries in front of the displayed ones.
+     */
+    public void addAllFirst(List<ChatEntry> olderEntries) {
+        if (olderEntries.isEmpty()) {
+            return;
+        }
+
+        entries.addAll(0, olderEntries);
+        notifyItemRangeInserted(0, olderEntries.size());
+    }
+
+    /**
+     * Removes the oldest entries until at most maxEntries are left.
+     */
+    public void trimStart(int maxEntries) {
+        int remove = entries.size() - maxEntries;
+        if (remove > 0) {
+            entries.subList(0, remove).clear();
+            notifyItemRangeRemoved(0, remove);
+        }
+    }
+
+    /**
+     * Removes the newest entries until at most maxEntries are left.
+     */
+    public void trimEnd(int maxEntries) {
+        int remove = entries.size() - maxEntries;
+        if (remove > 0) {
+            entries.subList(maxEntries, entries.size()).clear();
+            notifyItemRangeRemoved(maxEntries, remove);
+        }
+    }
+
+    /**
+     * Replaces the displayed entries, only the changed rows are updated.
+     */
+    public void setEntries(final List<ChatEntry> newEntries) {
+        final List<ChatEntry> oldEntries = new ArrayList<ChatEntry>(entries);
+
+        entries.clear();
+        entries.addAll(newEntries);
+
+        if (oldEntries.isEmpty() || newEntries.isEmpty() || !shareEntries(oldEntries, newEntries)) {
+            // Nothing to diff, e.g. switched to another room
+            notifyDataSetChanged();
+            return;
+        }
+
+        DiffUtil.calculateDiff(new DiffUtil.Callback() {
+
+            @Override
+            public int getOldListSize() {
+                return oldEntries.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newEntries.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldEntries.get(oldItemPosition).getEntryId() == newEntries.get(newItemPosition).getEntryId();
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                // Ads might be shown in another way now
+                return newEntries.get(newItemPosition).getMessageType() != ChatEntry.MessageType.AD;
+            }
+        }, false).dispatchUpdatesTo(this);
+    }
+
+    public void clear() {
+        int size = entries.size();
+        if (size > 0) {
+            entries.clear();
+            notifyItemRangeRemoved(0, size);
+        }
     }
 
     public void setTextSize(float textSize) {
@@ -146,8 +286,21 @@ public class ChatEntryListAdapter extends ArrayAdapter<ChatEntry> {
 
         if (changed) {
             // Force to redraw
-            notifyDataSetChanged();
+            notifyItemRangeChanged(0, entries.size());
         }
     }
 
+    private static boolean shareEntries(List<ChatEntry> oldEntries, List<ChatEntry> newEntries) {
+        Set<Long> oldIds = new HashSet<Long>(oldEntries.size());
+        for (ChatEntry entry : oldEntries) {
+            oldIds.add(entry.getEntryId());
+        }
+
+        for (ChatEntry entry : newEntries) {
+            if (oldIds.contains(entry.getEntryId())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -36,11 +36,8 @@ import com.andfchat.R;
 import com.andfchat.core.data.Chatroom;
 import com.andfchat.core.data.ChatroomManager;
 import com.andfchat.core.data.SessionData;
+import com.andfchat.frontend.util.ImageLoader;
 import com.google.inject.Inject;
-import okhttp3.OkHttpClient;
-
-import com.jakewharton.picasso.OkHttp3Downloader;
-import com.squareup.picasso.Picasso;
 
 public class ChatroomListAdapter extends ArrayAdapter<Chatroom> {
 
@@ -49,8 +46,6 @@ public class ChatroomListAdapter extends ArrayAdapter<Chatroom> {
     @Inject
     private SessionData sessionData;
 
-    Picasso picasso;
-
     private final int activeColor;
     private final int attentionColor;
     private final int standardColor;
@@ -73,13 +68,6 @@ public class ChatroomListAdapter extends ArrayAdapter<Chatroom> {
         statusColor = colorArray.getColor(3, 0);
 
         colorArray.recycle();
-
-        OkHttpClient client = new OkHttpClient();
-        //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
-
-        picasso = new Picasso.Builder(getContext())
-                .downloader(new OkHttp3Downloader(client))
-                .build();
     }
 
     @Override
@@ -126,18 +114,15 @@ public class ChatroomListAdapter extends ArrayAdapter<Chatroom> {
 
         ImageView image = (ImageView)rowView.findViewById(R.id.ChatroomImage);
         if (chatroom.isPrivateChat() && chatroom.getShowAvatar()) {
-            String name = chatroom.getCharacters().get(0).getName().toLowerCase().replace(" ", "%20");
-            String url = "https://static.f-list.net/images/avatar/" + name + ".png";
-
-            picasso.load(url)
-                    .placeholder(R.drawable.ic_chat_priv)
-                    .error(R.drawable.ic_chat_priv)
-                    .into(image);
+            ImageLoader.loadAvatar(getContext(), chatroom.getCharacters().get(0).getName(), image);
         } else if (chatroom.isPrivateChat()) {
+            ImageLoader.cancelLoad(image);
             image.setImageResource(R.drawable.ic_chat_priv);
         } else if (chatroom.isSystemChat()) {
+            ImageLoader.cancelLoad(image);
             image.setImageResource(R.drawable.ic_chat_sys);
         } else {
+            ImageLoader.cancelLoad(image);
             image.setImageResource(R.drawable.ic_chat_room);
         }
 
@@ -40,19 +40,14 @@ import com.andfchat.core.data.FCharacter;
 import com.andfchat.core.data.SessionData;
 import com.andfchat.core.data.messages.ChatEntryFactory;
 import com.andfchat.core.util.FlistCharComparator;
+import com.andfchat.frontend.util.ImageLoader;
 import com.andfchat.frontend.util.NormalNameSpannable;
 import com.google.inject.Inject;
-import okhttp3.OkHttpClient;
-
-import com.jakewharton.picasso.OkHttp3Downloader;
-import com.squareup.picasso.Picasso;
 
 public class FriendListAdapter extends ArrayAdapter<FCharacter> {
 
     private final static FlistCharComparator COMPARATOR = new FlistCharComparator();
 
-    private static Picasso picasso = null;
-
     @Inject
     private ChatroomManager chatroomManager;
     @Inject
@@ -61,7 +56,6 @@ public class FriendListAdapter extends ArrayAdapter<FCharacter> {
     private ChatEntryFactory entryFactory;
 
     private final List<FCharacter> chars;
-    private OkHttpClient client = new OkHttpClient();
 
     ImageView image;
 
@@ -75,12 +69,6 @@ public class FriendListAdapter extends ArrayAdapter<FCharacter> {
         this.chars = chars;
 
         RoboGuice.getInjector(context).injectMembers(this);
-
-        if (picasso == null)  {
-            picasso = new Picasso.Builder(getContext())
-                    .downloader(new OkHttp3Downloader(client))
-                    .build();
-        }
     }
 
     @Override
@@ -128,17 +116,11 @@ public class FriendListAdapter extends ArrayAdapter<FCharacter> {
         }
 
 
-        //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
         image = (ImageView)rowView.findViewById(R.id.AvatarImage);
         if (sessionData.getSessionSettings().showAvatarPictures()) {
-            String name = character.getName().toLowerCase().replace(" ", "%20");
-            String url = "https://static.f-list.net/images/avatar/" + name + ".png";
-
-            picasso.load(url)
-                    .placeholder(R.drawable.ic_chat_priv)
-                    .error(R.drawable.ic_chat_priv)
-                    .into(image);
+            ImageLoader.loadAvatar(getContext(), character.getName(), image);
         } else {
+            ImageLoader.cancelLoad(image);
             image.setImageResource(R.drawable.ic_chat_priv);
         }
 
@@ -20,6 +20,7 @@ package com.andfchat.frontend.adapter;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import net.sourcerer.quickaction.ActionItem;
 import net.sourcerer.quickaction.PopUpAlignment;
@@ -28,9 +29,7 @@ import net.sourcerer.quickaction.QuickActionOnClickListener;
 import net.sourcerer.quickaction.QuickActionOnOpenListener;
 
 import retrofit2.Call;
-import retrofit2.GsonConverterFactory;
 import retrofit2.Response;
-import retrofit2.Retrofit;
 import roboguice.RoboGuice;
 import roboguice.util.Ln;
 import android.content.Context;
@@ -47,7 +46,9 @@ import android.widget.PopupWindow.OnDismissListener;
 import android.widget.TextView;
 
 import com.andfchat.R;
-import com.andfchat.core.connection.FlistHttpClient;
+import com.andfchat.core.connection.FeedbackListener;
+import com.andfchat.core.connection.FlistHttpService;
+import com.andfchat.core.connection.TicketManager;
 import com.andfchat.core.connection.handler.PrivateMessageHandler;
 import com.andfchat.core.connection.handler.VariableHandler.Variable;
 import com.andfchat.core.data.CharRelation;
@@ -60,7 +61,6 @@ import com.andfchat.core.data.messages.ChatEntryFactory;
 import com.andfchat.core.util.FlistCharComparatorGender;
 import com.andfchat.frontend.util.NameSpannable;
 import com.google.inject.Inject;
-import okhttp3.OkHttpClient;
 
 public class MemberListAdapter extends ArrayAdapter<FCharacter> {
 
@@ -74,6 +74,10 @@ public class MemberListAdapter extends ArrayAdapter<FCharacter> {
     private RelationManager relationManager;
     @Inject
     private ChatEntryFactory entryFactory;
+    @Inject
+    private FlistHttpService httpService;
+    @Inject
+    private TicketManager ticketManager;
 
     private final List<FCharacter> chars;
     private final QuickActionBar quickActionBar;
@@ -135,59 +139,11 @@ public class MemberListAdapter extends ArrayAdapter<FCharacter> {
 
             @Override
             public void onClick(ActionItem item, View view) {
-
-                OkHttpClient client = new OkHttpClient();
-                //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
-
-                Retrofit restAdapter = new Retrofit.Builder()
-                        .baseUrl("https://www.f-list.net")
-                        .client(client)
-                        .addConverterFactory(GsonConverterFactory.create())
-                        .build();
-
-                FlistHttpClient httpClient = restAdapter.create(FlistHttpClient.class);
-
-
-                retrofit2.Callback<FlistHttpClient.LoginData> ticketgetterremove = new retrofit2.Callback<FlistHttpClient.LoginData>() {
-                    @Override
-                    public void onResponse(retrofit2.Response<FlistHttpClient.LoginData> response) {
-                        FlistHttpClient.LoginData loginData = response.body();
-                        Ln.i("Successfully got a ticket: " + loginData.getTicket());
-                        sessionData.setTicket(loginData.getTicket());
-                        removeBookmark();
-                    }
-
-                    @Override
-                    public void onFailure(Throwable t) {
-                        Ln.i("Problem with getting ticket: " + t.getMessage());
-                    }
-                };
-
-                retrofit2.Callback<FlistHttpClient.LoginData> ticketgetteradd = new retrofit2.Callback<FlistHttpClient.LoginData>() {
-                    @Override
-                    public void onResponse(retrofit2.Response<FlistHttpClient.LoginData> response) {
-                        FlistHttpClient.LoginData loginData = response.body();
-                        Ln.i("Successfully got a ticket: " + loginData.getTicket());
-                        sessionData.setTicket(loginData.getTicket());
-                        addBookmark();
-                    }
-
-                    @Override
-                    public void onFailure(Throwable t) {
-                        Ln.i("Problem with getting ticket: " + t.getMessage());
-                    }
-                };
-
-
-
                 if (item.isSelected()) {
-                    Call<FlistHttpClient.LoginData> relog = httpClient.logIn(sessionData.getAccount(), sessionData.getPassword());
-                    relog.enqueue(ticketgetterremove);
-
+                    removeBookmark(activeCharacter);
                 }
                 else {
-                    Call<FlistHttpClient.LoginData> relog = httpClient.logIn(sessionData.getAccount(), sessionData.getPassword());
-                    relog.enqueue(ticketgetteradd);
+                    addBookmark(activeCharacter);
                 }
             }
         });
@@ -379,80 +335,80 @@ public class MemberListAdapter extends ArrayAdapter<FCharacter> {
         notifyDataSetChanged();
     }
 
-    public void removeBookmark() {
-        OkHttpClient client = new OkHttpClient();
-        //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
-
-        Retrofit restAdapter = new Retrofit.Builder()
-                .baseUrl("https://www.f-list.net")
-                .client(client)
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
-
-        FlistHttpClient httpClient = restAdapter.create(FlistHttpClient.class);
+    public void removeBookmark(final FCharacter character) {
+        ticketManager.getTicket(new FeedbackListener() {
+            @Override
+            public void onResponse(String ticket) {
+                Call<Object> call = httpService.getClient().removeBookmark(sessionData.getAccount(), ticket, character.getName());
+                Ln.i("Removing " + character.getName() + " from bookmarks");
+                call.enqueue(new BookmarkCallback(character, false));
+            }
 
-        // HTTP call need to be a post and post wants a callback, that is not needed -> ignore
-        retrofit2.Callback<Object> callback = new retrofit2.Callback<Object>() {
             @Override
-            public void onResponse(Response<Object> response) {
-                if (response.body() != null) {
-                    relationManager.removeFromList(CharRelation.BOOKMARKED, activeCharacter);
-                    sortList();
-                } else {
-                    onError("null response.");
-                }
+            public void onError(Exception ex) {
+                Ln.i("Bookmarking failed: " + ex.getMessage());
             }
+        });
+    }
 
+    public void addBookmark(final FCharacter character) {
+        ticketManager.getTicket(new FeedbackListener() {
             @Override
-            public void onFailure(Throwable t) {
-                onError(t.getMessage());
+            public void onResponse(String ticket) {
+                Call<Object> call = httpService.getClient().addBookmark(sessionData.getAccount(), ticket, character.getName());
+                Ln.i("Adding " + character.getName() + " to bookmarks");
+                call.enqueue(new BookmarkCallback(character, true));
             }
 
-            private void onError(final String message) {
-                Ln.i("Bookmarking failed: " + message);
+            @Override
+            public void onError(Exception ex) {
+                Ln.i("Bookmarking failed: " + ex.getMessage());
             }
-        };
-        Call<Object> call = httpClient.removeBookmark(sessionData.getAccount(), sessionData.getTicket(), activeCharacter.getName());
-        Ln.i("Removing " + activeCharacter.getName() + " from bookmarks");
-        call.enqueue(callback);
+        });
     }
 
-    public void addBookmark() {
-        OkHttpClient client = new OkHttpClient();
-        //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
+    private class BookmarkCallback implements retrofit2.Callback<Object> {
 
-        Retrofit restAdapter = new Retrofit.Builder()
-                .baseUrl("https://www.f-list.net")
-                .client(client)
-                .addConverterFactory(GsonConverterFactory.create())
-                .build();
+        private final FCharacter character;
+        private final boolean add;
 
-        FlistHttpClient httpClient = restAdapter.create(FlistHttpClient.class);
+        public BookmarkCallback(FCharacter character, boolean add) {
+            this.character = character;
+            this.add = add;
+        }
 
-        // HTTP call need to be a post and post wants a callback, that is not needed -> ignore
-        retrofit2.Callback<Object> callback = new retrofit2.Callback<Object>() {
-            @Override
-            public void onResponse(Response<Object> response) {
-                if (response.body() != null) {
-                    relationManager.addOnList(CharRelation.BOOKMARKED, activeCharacter);
-                    sortList();
-                } else {
-                    onError("null response.");
-                }
+        @Override
+        public void onResponse(Response<Object> response) {
+            Object body = response.body();
+            if (body == null) {
+                onError("null response.");
+                return;
             }
 
-            @Override
-            public void onFailure(Throwable t) {
-                onError(t.getMessage());
+            Object error = body instanceof Map ? ((Map<?, ?>)body).get("error") : null;
+            if (error != null && error.toString().length() > 0) {
+                // Ticket might have been invalidated by the server, get a new one next time
+                ticketManager.invalidate();
+                onError(error.toString());
+                return;
             }
 
-            private void onError(final String message) {
-                Ln.i("Bookmarking failed: " + message);
+            if (add) {
+                relationManager.addOnList(CharRelation.BOOKMARKED, character);
+            } else {
+                relationManager.removeFromList(CharRelation.BOOKMARKED, character);
             }
-        };
-        Call<Object> call = httpClient.addBookmark(sessionData.getAccount(), sessionData.getTicket(), activeCharacter.getName());
-        Ln.i("Adding " + activeCharacter.getName() + " to bookmarks");
-        call.enqueue(callback);
+            sortList();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            onError(t.getMessage());
+        }
+
+        private void onError(final String message) {
+            Ln.i("Bookmarking failed: " + message);
+        }
     }
 
     public void sortList(){
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.adapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import roboguice.RoboGuice;
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.andfchat.core.data.CharacterNameIndex;
+import com.andfchat.core.data.ChatroomManager;
+import com.andfchat.core.data.FCharacter;
+import com.andfchat.frontend.util.NormalNameSpannable;
+import com.google.inject.Inject;
+
+/**
+ * Suggests names of online characters for the text typed so far, best ranked first.
+ * @author AndFChat
+ */
+public class NameCompletionAdapter extends BaseAdapter implements Filterable {
+
+    private final static int MAX_COMPLETIONS = 8;
+
+    @Inject
+    private CharacterNameIndex nameIndex;
+    @Inject
+    private ChatroomManager chatroomManager;
+
+    private final Context context;
+    private final LayoutInflater inflater;
+
+    private List<FCharacter> completions = new ArrayList<FCharacter>();
+
+    private final Filter filter = new Filter() {
+
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            FilterResults results = new FilterResults();
+            if (constraint != null) {
+                // Called on a background thread
+                List<FCharacter> found = nameIndex.complete(constraint.toString().trim(), chatroomManager.getActiveChat(), MAX_COMPLETIONS);
+                results.values = found;
+                results.count = found.size();
+            }
+            return results;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            if (results.values != null) {
+                completions = (List<FCharacter>)results.values;
+            } else {
+                completions = new ArrayList<FCharacter>();
+            }
+
+            if (completions.isEmpty()) {
+                notifyDataSetInvalidated();
+            } else {
+                notifyDataSetChanged();
+            }
+        }
+
+        @Override
+        public CharSequence convertResultToString(Object resultValue) {
+            return ((FCharacter)resultValue).getName();
+        }
+    };
+
+    public NameCompletionAdapter(Context context) {
+        this.context = context;
+        this.inflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+        RoboGuice.getInjector(context).injectMembers(this);
+    }
+
+    @Override
+    public int getCount() {
+        return completions.size();
+    }
+
+    @Override
+    public FCharacter getItem(int position) {
+        return completions.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = inflater.inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+        }
+
+        ((TextView)convertView).setText(new NormalNameSpannable(getItem(position), null, context.getResources()));
+        return convertView;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return filter;
+    }
+}
@@ -23,6 +23,7 @@ import org.acra.ReportingInteractionMode;
 import org.acra.annotation.ReportsCrashes;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -33,9 +34,14 @@ import android.os.IBinder;
 import com.andfchat.R;
 import com.andfchat.core.connection.AndFChatConnectionService;
 import com.andfchat.core.connection.AndFChatConnectionService.ConnectionServiceBinder;
+import com.andfchat.core.data.ChatroomManager;
+import com.andfchat.core.data.messages.AdStore;
+import com.andfchat.core.data.messages.ChatEntry;
+import com.andfchat.core.util.SmileyReader;
+import com.andfchat.frontend.util.ImageLoader;
 
 import de.tavendo.autobahn.WebSocketConnection;
-//import roboguice.RoboGuice;
+import roboguice.RoboGuice;
 import roboguice.util.Ln;
 
 @ReportsCrashes(formKey = "", // will not be used
@@ -76,6 +82,8 @@ public class AndFChatApplication extends Application {
         Intent serviceIntent = new Intent(this, AndFChatConnectionService.class);
         bindService(serviceIntent, networkServiceConnection, Context.BIND_AUTO_CREATE);
 
+        SmileyReader.loadSmileys(this, R.array.Smileys);
+
         // The following line triggers the initialization of ACRA
         ACRA.init(this);
     }
@@ -96,6 +104,23 @@ public class AndFChatApplication extends Application {
 
 
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ChatEntry.getRenderCache().onTrimMemory(level);
+        ImageLoader.onTrimMemory(level);
+        RoboGuice.getInjector(this).getInstance(ChatroomManager.class).onTrimMemory(level);
+        Ln.d("Shared ads: " + RoboGuice.getInjector(this).getInstance(AdStore.class).getStatistics());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ChatEntry.getRenderCache().clear();
+        ImageLoader.clear();
+        RoboGuice.getInjector(this).getInstance(ChatroomManager.class).onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
     @Override
     public void onTerminate() {
         Ln.d("On Terminate");
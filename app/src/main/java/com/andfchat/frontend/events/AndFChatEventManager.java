@@ -1,7 +1,18 @@
 package com.andfchat.frontend.events;
 
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import roboguice.util.Ln;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Pair;
 
 import com.andfchat.core.data.Chatroom;
 import com.andfchat.core.data.FCharacter;
@@ -10,58 +21,292 @@ import com.andfchat.frontend.events.ChatroomEventListener.ChatroomEventType;
 import com.andfchat.frontend.events.UserEventListener.UserEventType;
 import com.google.inject.Singleton;
 
+/**
+ * Delivers events to the registered listeners. Every listener chooses where its events are delivered, events
+ * are delivered in the order they were fired. Listener lists are copied on write, so firing never blocks and
+ * listeners might register other listeners while handling an event.
+ */
 @Singleton
 public class AndFChatEventManager {
 
-    private final List<ChatroomEventListener> chatroomEventListener = new ArrayList<ChatroomEventListener>();
-    private final List<MessageEventListener> messageEventListener = new ArrayList<MessageEventListener>();
-    private final List<UserEventListener> userEventListener = new ArrayList<UserEventListener>();
-    private final List<ConnectionEventListener> connectionEventListener = new ArrayList<>();
+    public enum Delivery {
+        // On the thread firing the event
+        INLINE,
+        // On the main thread, inline if fired there and no other events are waiting
+        MAIN_THREAD,
+        // On a shared background thread
+        BACKGROUND
+    }
+
+    // Events only telling "something changed", waiting ones are not delivered twice
+    private final static EnumSet<ChatroomEventType> COALESCED_TYPES = EnumSet.of(
+            ChatroomEventType.NEW_MESSAGE,
+            ChatroomEventType.NEW_STATUS,
+            ChatroomEventType.NEW_TYPING_STATUS);
+
+    // Maximum of events delivered on the main thread at once, before giving other work a chance
+    private final static int MAX_EVENTS_PER_RUN = 50;
+    // Statistics are logged after this amount of events
+    private final static int LOG_INTERVAL = 1000;
+
+    private final List<Subscription<ChatroomEventListener>> chatroomEventListener = new CopyOnWriteArrayList<Subscription<ChatroomEventListener>>();
+    private final List<Subscription<MessageEventListener>> messageEventListener = new CopyOnWriteArrayList<Subscription<MessageEventListener>>();
+    private final List<Subscription<UserEventListener>> userEventListener = new CopyOnWriteArrayList<Subscription<UserEventListener>>();
+    private final List<Subscription<ConnectionEventListener>> connectionEventListener = new CopyOnWriteArrayList<Subscription<ConnectionEventListener>>();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "AndFChatEventManager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private long delivered = 0;
+    private long coalesced = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    public void register(ChatroomEventListener listener) {
+        register(listener, Delivery.MAIN_THREAD);
+    }
+
+    public void register(ChatroomEventListener listener, Delivery delivery) {
+        chatroomEventListener.add(new Subscription<ChatroomEventListener>(listener, delivery));
+    }
+
+    public void register(MessageEventListener listener) {
+        register(listener, Delivery.MAIN_THREAD);
+    }
+
+    public void register(MessageEventListener listener, Delivery delivery) {
+        messageEventListener.add(new Subscription<MessageEventListener>(listener, delivery));
+    }
+
+    public void register(ConnectionEventListener listener) {
+        register(listener, Delivery.MAIN_THREAD);
+    }
+
+    public void register(ConnectionEventListener listener, Delivery delivery) {
+        connectionEventListener.add(new Subscription<ConnectionEventListener>(listener, delivery));
+    }
+
+    public void register(UserEventListener listener) {
+        register(listener, Delivery.MAIN_THREAD);
+    }
+
+    public void register(UserEventListener listener, Delivery delivery) {
+        userEventListener.add(new Subscription<UserEventListener>(listener, delivery));
+    }
+
+    public void fire(final Chatroom chatroom, final ChatroomEventType type) {
+        Object coalesceKey = COALESCED_TYPES.contains(type) ? new Pair<Chatroom, ChatroomEventType>(chatroom, type) : null;
+
+        dispatch(chatroomEventListener, new Event<ChatroomEventListener>(coalesceKey) {
+            @Override
+            protected void deliverTo(ChatroomEventListener listener) {
+                listener.onEvent(chatroom, type);
+            }
+        });
+    }
+
+    public void fire(final ChatEntry entry, final Chatroom chatroom) {
+        dispatch(messageEventListener, new Event<MessageEventListener>(null) {
+            @Override
+            protected void deliverTo(MessageEventListener listener) {
+                listener.onEvent(entry, chatroom);
+            }
+        });
+    }
+
+    public void fireChanged(final ChatEntry entry, final Chatroom chatroom) {
+        dispatch(messageEventListener, new Event<MessageEventListener>(null) {
+            @Override
+            protected void deliverTo(MessageEventListener listener) {
+                listener.onChanged(entry, chatroom);
+            }
+        });
+    }
 
-    public synchronized void register(ChatroomEventListener listener) {
-        chatroomEventListener.add(listener);
+    public void fire(final FCharacter character, final UserEventType type, final Chatroom chatroom) {
+        dispatch(userEventListener, new Event<UserEventListener>(null) {
+            @Override
+            protected void deliverTo(UserEventListener listener) {
+                listener.onEvent(character, type, chatroom);
+            }
+        });
     }
 
-    public synchronized void register(MessageEventListener listener) {
-        messageEventListener.add(listener);
+    public void fire(final ConnectionEventListener.ConnectionEventType type) {
+        dispatch(connectionEventListener, new Event<ConnectionEventListener>(null) {
+            @Override
+            protected void deliverTo(ConnectionEventListener listener) {
+                listener.onEvent(type);
+            }
+        });
     }
 
-    public synchronized void register(ConnectionEventListener listener) {
-        connectionEventListener.add(listener);
+    public void clear() {
+        cancel(chatroomEventListener);
+        cancel(messageEventListener);
+        cancel(userEventListener);
+        cancel(connectionEventListener);
     }
 
-    public synchronized void register(UserEventListener listener) {
-        userEventListener.add(listener);
+    public synchronized String getStatistics() {
+        long averageMicros = delivered > 0 ? totalLatency / delivered / 1000 : 0;
+        return "[delivered: " + delivered + ", coalesced: " + coalesced + ", average latency: " + averageMicros + "us, max latency: "
+                + (maxLatency / 1000) + "us]";
     }
 
-    public synchronized void fire(Chatroom chatroom, ChatroomEventType type) {
-        for (ChatroomEventListener listener : chatroomEventListener) {
-            listener.onEvent(chatroom, type);
+    private <L> void dispatch(List<Subscription<L>> subscriptions, Event<L> event) {
+        // Iterates over a snapshot of the listeners
+        for (Subscription<L> subscription : subscriptions) {
+            subscription.post(event);
         }
     }
 
-    public synchronized void fire(ChatEntry entry, Chatroom chatroom) {
-        for (MessageEventListener listener : messageEventListener) {
-            listener.onEvent(entry, chatroom);
+    private <L> void cancel(List<Subscription<L>> subscriptions) {
+        for (Subscription<L> subscription : subscriptions) {
+            subscription.cancelled = true;
         }
+        subscriptions.clear();
     }
 
-    public synchronized void fire(FCharacter character, UserEventType type, Chatroom chatroom) {
-        for (UserEventListener listener : userEventListener) {
-            listener.onEvent(character, type, chatroom);
+    private void onDelivered(Event<?> event) {
+        long latency = System.nanoTime() - event.firedAt;
+        boolean log;
+
+        synchronized(this) {
+            delivered++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            log = delivered % LOG_INTERVAL == 0;
+        }
+
+        if (log) {
+            Ln.d("Event dispatch: " + getStatistics());
         }
     }
 
-    public synchronized void fire(ConnectionEventListener.ConnectionEventType type) {
-        for (ConnectionEventListener listener : connectionEventListener) {
-            listener.onEvent(type);
+    private synchronized void onCoalesced() {
+        coalesced++;
+    }
+
+    private static abstract class Event<L> {
+
+        private final long firedAt = System.nanoTime();
+        // Events with equal keys are merged while waiting for delivery, null if the event can't be merged
+        private final Object coalesceKey;
+
+        protected Event(Object coalesceKey) {
+            this.coalesceKey = coalesceKey;
         }
+
+        protected abstract void deliverTo(L listener);
     }
 
-    public void clear() {
-        chatroomEventListener.clear();
-        messageEventListener.clear();
-        userEventListener.clear();
-        connectionEventListener.clear();
+    /**
+     * A registered listener with its queue of events waiting for delivery.
+     */
+    private class Subscription<L> implements Runnable {
+
+        private final L listener;
+        private final Delivery delivery;
+
+        private final ArrayDeque<Event<L>> queue = new ArrayDeque<Event<L>>();
+        private boolean scheduled = false;
+        private volatile boolean cancelled = false;
+
+        public Subscription(L listener, Delivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
+        }
+
+        public void post(Event<L> event) {
+            if (delivery == Delivery.INLINE) {
+                deliver(event);
+                return;
+            }
+
+            synchronized(this) {
+                boolean inline = delivery == Delivery.MAIN_THREAD && !scheduled && queue.isEmpty() && Looper.myLooper() == Looper.getMainLooper();
+
+                if (!inline) {
+                    if (event.coalesceKey != null && isQueued(event.coalesceKey)) {
+                        onCoalesced();
+                        return;
+                    }
+
+                    queue.add(event);
+                    if (!scheduled) {
+                        scheduled = true;
+                        schedule();
+                    }
+                    return;
+                }
+            }
+
+            deliver(event);
+        }
+
+        @Override
+        public void run() {
+            int remaining = delivery == Delivery.MAIN_THREAD ? MAX_EVENTS_PER_RUN : Integer.MAX_VALUE;
+
+            while (remaining-- > 0) {
+                Event<L> event;
+                synchronized(this) {
+                    event = queue.poll();
+                    if (event == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+
+                try {
+                    deliver(event);
+                } catch (RuntimeException ex) {
+                    Ln.e(ex, "Listener failed handling an event");
+                }
+            }
+
+            // Continue with the next run
+            synchronized(this) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (delivery == Delivery.MAIN_THREAD) {
+                mainHandler.post(this);
+            } else {
+                backgroundExecutor.execute(this);
+            }
+        }
+
+        private void deliver(Event<L> event) {
+            if (!cancelled) {
+                event.deliverTo(listener);
+                onDelivered(event);
+            }
+        }
+
+        private boolean isQueued(Object coalesceKey) {
+            for (Event<L> queued : queue) {
+                if (coalesceKey.equals(queued.coalesceKey)) {
+                    return true;
+                }
+            }
+            return false;
+        }
     }
 }
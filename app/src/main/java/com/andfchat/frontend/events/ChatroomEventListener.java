@@ -11,6 +11,7 @@ public interface ChatroomEventListener {
         NEW_MESSAGE,
         NEW_STATUS,
         NEW_TYPING_STATUS,
+        HISTORY_LOADED,
     }
 
     void onEvent(Chatroom chatroom, ChatroomEventType type);
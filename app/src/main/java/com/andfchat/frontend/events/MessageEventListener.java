@@ -5,4 +5,9 @@ import com.andfchat.core.data.messages.ChatEntry;
 
 public interface MessageEventListener {
     void onEvent(ChatEntry entry, Chatroom chatroom);
+
+    /**
+     * The entry, added before, is shown differently now.
+     */
+    void onChanged(ChatEntry entry, Chatroom chatroom);
 }
@@ -26,24 +26,35 @@ import roboguice.inject.InjectView;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Pair;
 import android.view.ViewGroup;
-import android.widget.AbsListView;
-import android.widget.ListView;
 
 import com.andfchat.R;
 import com.andfchat.core.connection.FlistWebSocketConnection;
 import com.andfchat.core.data.Chatroom;
 import com.andfchat.core.data.ChatroomManager;
 import com.andfchat.core.data.SessionData;
+import com.andfchat.core.data.history.HistoryLog;
+import com.andfchat.core.data.history.HistoryManager;
 import com.andfchat.core.data.messages.ChatEntry;
 import com.andfchat.frontend.adapter.ChatEntryListAdapter;
 import com.andfchat.frontend.events.AndFChatEventManager;
 import com.andfchat.frontend.events.ChatroomEventListener;
 import com.andfchat.frontend.events.MessageEventListener;
+import com.andfchat.frontend.util.FrameBatcher;
 import com.google.inject.Inject;
 
 public class ChatFragment extends RoboFragment implements ChatroomEventListener, MessageEventListener {
 
+    // Entries loaded at once while scrolling through the history
+    private final static int PAGE_SIZE = 50;
+    // Next page is loaded if the displayed entry is this close to the end of the window
+    private final static int PREFETCH_DISTANCE = 10;
+    // Maximum of entries kept by the transcript, entries at the other end are dropped
+    private final static int MAX_WINDOW_SIZE = 300;
+
     @Inject
     protected ChatroomManager chatroomManager;
     @Inject
@@ -52,11 +63,25 @@ public class ChatFragment extends RoboFragment implements ChatroomEventListener,
     protected AndFChatEventManager eventManager;
     @Inject
     protected SessionData sessionData;
+    @Inject
+    protected HistoryManager historyManager;
 
     @InjectView(R.id.chat)
-    private ListView chatListView;
+    private RecyclerView chatListView;
 
     private ChatEntryListAdapter chatListData;
+    private LinearLayoutManager layoutManager;
+
+    // Chatroom shown by the transcript
+    private Chatroom displayedChat;
+    // Is the newest message of the chatroom part of the window?
+    private boolean showsLatest = true;
+    private boolean pageRequested = false;
+    // Entry to scroll to, once the chatroom is displayed and the entry loaded
+    private ChatEntry targetEntry;
+    private Chatroom targetChat;
+
+    private FrameBatcher<Pair<ChatEntry, Chatroom>> messageBatcher;
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -77,29 +102,201 @@ public class ChatFragment extends RoboFragment implements ChatroomEventListener,
         { // Chat window setup
             float textSize = getResources().getDimension(sessionData.getSessionSettings().getChatTextSize().getTextSizeId());
             chatListData = new ChatEntryListAdapter(getActivity(), textSize);
-            chatListView.setAdapter(chatListData);
-            // Auto-scroll to bottom
-            chatListView.setTranscriptMode(AbsListView.TRANSCRIPT_MODE_NORMAL);
+            layoutManager = new LinearLayoutManager(getActivity());
             // Stack chat from bottom to top
-            chatListView.setStackFromBottom(true);
+            layoutManager.setStackFromEnd(true);
+            chatListView.setLayoutManager(layoutManager);
+            chatListView.setAdapter(chatListData);
+
+            // Messages are added once per frame
+            float refreshRate = getActivity().getWindowManager().getDefaultDisplay().getRefreshRate();
+            messageBatcher = new FrameBatcher<Pair<ChatEntry, Chatroom>>(refreshRate, new FrameBatcher.BatchListener<Pair<ChatEntry, Chatroom>>() {
+                @Override
+                public void onBatch(List<Pair<ChatEntry, Chatroom>> batch) {
+                    addMessages(batch);
+                }
+            });
+
+            chatListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                    requestPage();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads older or newer entries into the window, if its start or end has been scrolled into view.
+     */
+    private void requestPage() {
+        if (pageRequested || displayedChat == null || chatListData.getItemCount() == 0) {
+            return;
+        }
+
+        final boolean older = layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE;
+        final boolean newer = !showsLatest && layoutManager.findLastVisibleItemPosition() >= chatListData.getItemCount() - 1 - PREFETCH_DISTANCE;
+        if (!older && !newer) {
+            return;
+        }
+
+        pageRequested = true;
+        // Adapter can't be changed from within a scroll callback
+        chatListView.post(new Runnable() {
+            @Override
+            public void run() {
+                pageRequested = false;
+                if (displayedChat == null || chatListData.getItemCount() == 0) {
+                    return;
+                }
+
+                if (older) {
+                    loadOlderPage();
+                } else {
+                    loadNewerPage();
+                }
+            }
+        });
+    }
+
+    private void loadOlderPage() {
+        ChatEntry first = chatListData.getItem(0);
+        List<ChatEntry> page = displayedChat.getMessagesBefore(first, PAGE_SIZE);
+        if (page.isEmpty()) {
+            // Entries shown might have been dropped from memory meanwhile, those before aren't known then
+            if (displayedChat.containsMessage(first)) {
+                // Continues once the entries are loaded from disk
+                historyManager.loadOlderHistory(displayedChat);
+            }
+            return;
+        }
+
+        chatListData.addAllFirst(page);
+        if (chatListData.getItemCount() > MAX_WINDOW_SIZE) {
+            chatListData.trimEnd(MAX_WINDOW_SIZE);
+            showsLatest = false;
+        }
+    }
+
+    private void loadNewerPage() {
+        ChatEntry last = chatListData.getItem(chatListData.getItemCount() - 1);
+        List<ChatEntry> page = displayedChat.getMessagesAfter(last, PAGE_SIZE);
+
+        chatListData.addAll(page);
+        chatListData.trimStart(MAX_WINDOW_SIZE);
+        showsLatest = displayedChat.isLastMessage(chatListData.getItem(chatListData.getItemCount() - 1));
+    }
+
+    /**
+     * Shows the entry of the chatroom, loading the history up to it if needed. The chatroom has to be activated.
+     */
+    public void showEntry(Chatroom chatroom, ChatEntry entry, HistoryLog.Position position) {
+        targetChat = chatroom;
+        targetEntry = entry;
+
+        if (chatroom.findMessage(entry) == null) {
+            historyManager.loadHistoryUntil(chatroom, position);
+        } else if (chatroom.equals(displayedChat)) {
+            showTargetEntry();
         }
     }
 
+    private void showTargetEntry() {
+        if (targetEntry == null || !targetChat.equals(displayedChat)) {
+            return;
+        }
+
+        ChatEntry entry = displayedChat.findMessage(targetEntry);
+        if (entry == null) {
+            // Not loaded yet
+            return;
+        }
+        targetEntry = null;
+        targetChat = null;
+
+        List<ChatEntry> before = displayedChat.getMessagesBefore(entry, PAGE_SIZE);
+        List<ChatEntry> after = displayedChat.getMessagesAfter(entry, PAGE_SIZE);
+
+        List<ChatEntry> window = new ArrayList<ChatEntry>(before.size() + 1 + after.size());
+        window.addAll(before);
+        window.add(entry);
+        window.addAll(after);
+
+        messageBatcher.clear();
+        showsLatest = displayedChat.isLastMessage(window.get(window.size() - 1));
+        chatListData.setEntries(window);
+        layoutManager.scrollToPositionWithOffset(before.size(), 0);
+    }
+
     @Override
-    public void onEvent(final ChatEntry entry, Chatroom chatroom) {
-        if (chatroom.equals(chatroomManager.getActiveChat())) {
-            synchronized(this) {
-                if (getActivity() != null) {
-                    getActivity().runOnUiThread(new Runnable() {
-
-                        @Override
-                        public void run() {
-                            chatListData.add(entry);
-                        }
-                    });
+    public void onEvent(ChatEntry entry, Chatroom chatroom) {
+        if (messageBatcher != null && chatroom.equals(chatroomManager.getActiveChat())) {
+            messageBatcher.add(new Pair<ChatEntry, Chatroom>(entry, chatroom));
+        }
+    }
+
+    @Override
+    public void onChanged(final ChatEntry entry, final Chatroom chatroom) {
+        if (getActivity() == null) {
+            return;
+        }
+
+        // Delivered inline, views are changed on the main thread
+        getActivity().runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (chatroom.equals(displayedChat)) {
+                    // Redrawn if shown, otherwise it is rendered anew once scrolled into view
+                    chatListData.refresh(entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds all messages received within one frame with a single insert.
+     */
+    private void addMessages(List<Pair<ChatEntry, Chatroom>> messages) {
+        if (getActivity() == null || displayedChat == null || !showsLatest) {
+            // Entries are loaded by paging, once the user scrolls down
+            return;
+        }
+
+        List<ChatEntry> entries = new ArrayList<ChatEntry>(messages.size());
+        for (Pair<ChatEntry, Chatroom> message : messages) {
+            if (message.second.equals(displayedChat)) {
+                entries.add(message.first);
+            }
+        }
+
+        // Entries might already be shown, if they arrived while the chatroom was opened
+        if (chatListData.getItemCount() > 0) {
+            ChatEntry lastShown = chatListData.getItem(chatListData.getItemCount() - 1);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i) == lastShown) {
+                    entries = entries.subList(i + 1, entries.size());
+                    break;
                 }
             }
         }
+
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        // Auto-scroll to bottom, if the last message was visible
+        boolean atBottom = layoutManager.findLastVisibleItemPosition() >= chatListData.getItemCount() - 1;
+
+        chatListData.addAll(entries);
+
+        if (atBottom) {
+            chatListData.trimStart(displayedChat.getMaximumEntries());
+            chatListView.scrollToPosition(chatListData.getItemCount() - 1);
+        } else if (chatListData.getItemCount() > MAX_WINDOW_SIZE) {
+            // User is reading older messages, keep them and stop following the chat
+            chatListData.trimEnd(MAX_WINDOW_SIZE);
+            showsLatest = false;
+        }
     }
 
     @Override
@@ -114,17 +311,38 @@ public class ChatFragment extends RoboFragment implements ChatroomEventListener,
                 messages = chatroom.getLastMessages(chatroom.getMaximumEntries());
             }
 
-            // Set messages
-            chatListData.clear();
-            chatListData.addAll(messages);
+            // Set messages, pending ones are part of them
+            messageBatcher.clear();
+            displayedChat = chatroom;
+            showsLatest = true;
+            chatListData.setEntries(messages);
             // Scroll to last message
             if (messages.size() > 0) {
-                chatListView.setSelection(messages.size() - 1);
+                chatListView.scrollToPosition(messages.size() - 1);
+            }
+
+            showTargetEntry();
+        } else if (type == ChatroomEventType.HISTORY_LOADED && chatroom.equals(displayedChat)) {
+            if (targetEntry != null) {
+                showTargetEntry();
+            } else if (chatListData.getItemCount() == 0) {
+                List<ChatEntry> messages = chatroom.getLastMessages(chatroom.getMaximumEntries());
+                chatListData.setEntries(messages);
+                if (messages.size() > 0) {
+                    chatListView.scrollToPosition(messages.size() - 1);
+                }
+            } else if (layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                // Entries were added in front of the shown ones
+                loadOlderPage();
             }
         }
     }
 
     public void clear() {
+        messageBatcher.clear();
+        displayedChat = null;
+        targetEntry = null;
+        targetChat = null;
         chatListData.clear();
     }
 
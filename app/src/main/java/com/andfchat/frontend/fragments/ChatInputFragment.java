@@ -23,24 +23,30 @@ import roboguice.inject.InjectView;
 import android.os.Bundle;
 import android.support.design.widget.Snackbar;
 import android.text.InputFilter;
+import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnKeyListener;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
-import android.widget.EditText;
+import android.widget.MultiAutoCompleteTextView;
 
 import com.andfchat.R;
 import com.andfchat.core.connection.FlistWebSocketConnection;
 import com.andfchat.core.data.Chatroom;
 import com.andfchat.core.data.ChatroomManager;
 import com.andfchat.core.util.Console;
+import com.andfchat.frontend.adapter.NameCompletionAdapter;
 import com.andfchat.frontend.events.ChatroomEventListener;
 import com.google.inject.Inject;
 
 public class ChatInputFragment extends RoboFragment implements ChatroomEventListener {
 
+    // Longest name of a character
+    private final static int MAX_NAME_LENGTH = 20;
+
     @Inject
     protected ChatroomManager chatroomManager;
     @Inject
@@ -51,7 +57,7 @@ public class ChatInputFragment extends RoboFragment implements ChatroomEventList
     private InputMethodManager inputManager;
 
     @InjectView(R.id.chatMessage)
-    private EditText inputText;
+    private MultiAutoCompleteTextView inputText;
     @InjectView(R.id.sendButton)
     private Button sendButton;
 
@@ -74,6 +80,25 @@ public class ChatInputFragment extends RoboFragment implements ChatroomEventList
                 }
             });
         }
+
+        { // Setup name completion
+            inputText.setAdapter(new NameCompletionAdapter(getActivity()));
+            inputText.setTokenizer(new NameTokenizer());
+            // Tab takes the best completion
+            inputText.setOnKeyListener(new OnKeyListener() {
+                @Override
+                public boolean onKey(View v, int keyCode, KeyEvent event) {
+                    if (keyCode == KeyEvent.KEYCODE_TAB && inputText.isPopupShowing()) {
+                        if (event.getAction() == KeyEvent.ACTION_DOWN) {
+                            inputText.setListSelection(0);
+                            inputText.performCompletion();
+                        }
+                        return true;
+                    }
+                    return false;
+                }
+            });
+        }
     }
 
     private void sendMessage() {
@@ -146,4 +171,46 @@ public class ChatInputFragment extends RoboFragment implements ChatroomEventList
             chatroomManager.getActiveChat().setEntry(inputText.getEditableText().toString());
         }
     }
+
+    /**
+     * Finds the name typed so far: the text after a command taking a character name, like /priv, or after an @.
+     */
+    private class NameTokenizer implements MultiAutoCompleteTextView.Tokenizer {
+
+        @Override
+        public int findTokenStart(CharSequence text, int cursor) {
+            // Names might contain spaces, the whole text after the command is the name
+            if (text.length() > 0 && text.charAt(0) == '/') {
+                int space = text.toString().indexOf(' ');
+                if (space != -1 && space < cursor && commands.takesCharacterName(text.subSequence(0, space).toString())) {
+                    return space + 1;
+                }
+            }
+
+            for (int i = cursor - 1; i >= 0 && cursor - i <= MAX_NAME_LENGTH + 1; i--) {
+                char c = text.charAt(i);
+                if (c == '\n') {
+                    break;
+                } else if (c == '@' && (i == 0 || Character.isWhitespace(text.charAt(i - 1)))) {
+                    return i + 1;
+                }
+            }
+            return cursor;
+        }
+
+        @Override
+        public int findTokenEnd(CharSequence text, int cursor) {
+            for (int i = cursor; i < text.length(); i++) {
+                if (Character.isWhitespace(text.charAt(i))) {
+                    return i;
+                }
+            }
+            return text.length();
+        }
+
+        @Override
+        public CharSequence terminateToken(CharSequence text) {
+            return text;
+        }
+    }
 }
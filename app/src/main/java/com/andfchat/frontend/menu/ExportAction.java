@@ -0,0 +1,245 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.menu;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import roboguice.RoboGuice;
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Point;
+import android.media.MediaScannerConnection;
+import android.os.Environment;
+import android.view.Display;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ProgressBar;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.andfchat.R;
+import com.andfchat.core.data.CharacterManager;
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.Chatroom;
+import com.andfchat.core.data.ChatroomManager;
+import com.andfchat.core.data.SessionData;
+import com.andfchat.core.data.history.HistoryManager;
+import com.andfchat.core.data.messages.ChatEntry;
+import com.andfchat.core.data.messages.ChatEntryFactory;
+import com.andfchat.frontend.popup.FListPopupWindow;
+import com.andfchat.frontend.util.ExportTask;
+import com.andfchat.frontend.util.Exporter;
+
+public class ExportAction {
+
+    private final static String DATE_PATTERN = "yyyy-MM-dd";
+    private final static long DAY = 24 * 60 * 60 * 1000;
+
+    public static void open(final Activity activity, View parent, final Chatroom chatroom) {
+        final ChatroomManager chatroomManager = RoboGuice.getInjector(activity).getInstance(ChatroomManager.class);
+        final HistoryManager historyManager = RoboGuice.getInjector(activity).getInstance(HistoryManager.class);
+        final SessionData sessionData = RoboGuice.getInjector(activity).getInstance(SessionData.class);
+
+        LayoutInflater inflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+        View layout = inflater.inflate(R.layout.popup_export, null);
+
+        Display display = activity.getWindowManager().getDefaultDisplay();
+
+        Point size = new Point();
+        display.getSize(size);
+
+        int width = (int)(size.x * 0.8f);
+
+        final FListPopupWindow popupWindow = new FListPopupWindow(layout, width, ViewGroup.LayoutParams.WRAP_CONTENT);
+        popupWindow.showAtLocation(parent, Gravity.CENTER, 0, 0);
+
+        final RadioGroup formatGroup = (RadioGroup)layout.findViewById(R.id.exportFormat);
+        final RadioGroup sourceGroup = (RadioGroup)layout.findViewById(R.id.exportSource);
+        final EditText fromField = (EditText)layout.findViewById(R.id.exportFrom);
+        final EditText toField = (EditText)layout.findViewById(R.id.exportTo);
+        final ProgressBar progressBar = (ProgressBar)layout.findViewById(R.id.exportProgress);
+        final TextView statusText = (TextView)layout.findViewById(R.id.exportStatus);
+        final Button exportButton = (Button)layout.findViewById(R.id.exportButton);
+
+        // Saved history can only be exported if it is kept
+        if (!sessionData.getSessionSettings().useHistory()) {
+            layout.findViewById(R.id.exportSourceHistory).setEnabled(false);
+            layout.findViewById(R.id.exportSourceAll).setEnabled(false);
+        }
+
+        sourceGroup.setOnCheckedChangeListener(new RadioGroup.OnCheckedChangeListener() {
+
+            @Override
+            public void onCheckedChanged(RadioGroup group, int checkedId) {
+                boolean fromHistory = checkedId != R.id.exportSourceSession;
+                fromField.setEnabled(fromHistory);
+                toField.setEnabled(fromHistory);
+            }
+        });
+        fromField.setEnabled(false);
+        toField.setEnabled(false);
+
+        exportButton.setOnClickListener(new View.OnClickListener() {
+
+            private ExportTask task;
+
+            @Override
+            public void onClick(View v) {
+                if (task != null) {
+                    task.cancel();
+                    popupWindow.dismiss();
+                    return;
+                }
+
+                Exporter.Format format = Exporter.Format.TEXT;
+                if (formatGroup.getCheckedRadioButtonId() == R.id.exportFormatHtml) {
+                    format = Exporter.Format.HTML;
+                } else if (formatGroup.getCheckedRadioButtonId() == R.id.exportFormatJson) {
+                    format = Exporter.Format.JSON;
+                }
+
+                File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+                path.mkdirs();
+
+                ExportTask.ExportListener listener = createListener(activity, chatroomManager, popupWindow, progressBar, statusText);
+
+                int source = sourceGroup.getCheckedRadioButtonId();
+                if (source == R.id.exportSourceSession) {
+                    File file = new File(path, "FListLog-" + chatroom.getName() + "-" + System.currentTimeMillis() + "." + format.extension);
+                    List<ChatEntry> entries = chatroom.getExportableChatHistory();
+                    long dropped = chatroom.getDroppedChatTime();
+                    if (dropped != Long.MAX_VALUE && !historyManager.isKept(chatroom.getChannel())) {
+                        // Chat dropped from memory is only read back from the history
+                        Toast.makeText(activity, R.string.export_session_incomplete, Toast.LENGTH_LONG).show();
+                    }
+                    task = ExportTask.exportSession(activity, format, file, historyManager, chatroom.getChannel(), dropped, entries, listener);
+                } else {
+                    Long from = parseDate(fromField.getText().toString());
+                    Long to = parseDate(toField.getText().toString());
+                    if (from == null || to == null) {
+                        Toast.makeText(activity, R.string.export_invalid_date, Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    // The last day is included
+                    long end = to != Long.MIN_VALUE ? to + DAY : Long.MAX_VALUE;
+                    long start = from;
+
+                    if (source == R.id.exportSourceHistory) {
+                        File file = new File(path, "FListLog-" + chatroom.getName() + "-" + System.currentTimeMillis() + "." + format.extension);
+                        Channel channel = new Channel(chatroom.getChannel().getChannelId(), chatroom.getName(), chatroom.getChannel().getType());
+                        List<Channel> channels = new ArrayList<Channel>();
+                        channels.add(channel);
+                        task = ExportTask.exportHistory(activity, format, file, historyManager, channels, start, end, listener);
+                    } else {
+                        File file = new File(path, "FListLogs-" + System.currentTimeMillis() + ".zip");
+                        List<Channel> channels = new ArrayList<Channel>();
+                        for (Channel channel : historyManager.getHistoryChannels()) {
+                            // Names of open chats, the id otherwise
+                            Chatroom open = chatroomManager.getChatroom(channel.getChannelId());
+                            String name = open != null ? open.getName() : channel.getChannelName();
+                            channels.add(new Channel(channel.getChannelId(), name, channel.getType()));
+                        }
+                        if (channels.isEmpty()) {
+                            Toast.makeText(activity, R.string.search_nothing_found, Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        task = ExportTask.exportHistory(activity, format, file, historyManager, channels, start, end, listener);
+                    }
+                }
+
+                progressBar.setVisibility(View.VISIBLE);
+                progressBar.setIndeterminate(true);
+                statusText.setVisibility(View.VISIBLE);
+                statusText.setText(activity.getString(R.string.export_progress, 0));
+                exportButton.setText(R.string.export_cancel);
+            }
+        });
+    }
+
+    private static ExportTask.ExportListener createListener(final Activity activity, final ChatroomManager chatroomManager,
+            final FListPopupWindow popupWindow, final ProgressBar progressBar, final TextView statusText) {
+        final CharacterManager charManager = RoboGuice.getInjector(activity).getInstance(CharacterManager.class);
+        final ChatEntryFactory entryFactory = RoboGuice.getInjector(activity).getInstance(ChatEntryFactory.class);
+
+        return new ExportTask.ExportListener() {
+
+            @Override
+            public void onProgress(int chats, int totalChats, int entries) {
+                if (totalChats > 1) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax(totalChats);
+                    progressBar.setProgress(chats);
+                    statusText.setText(activity.getString(R.string.export_progress_chats, chats, totalChats, entries));
+                } else {
+                    statusText.setText(activity.getString(R.string.export_progress, entries));
+                }
+            }
+
+            @Override
+            public void onFinished(File file, int entries) {
+                popupWindow.dismiss();
+
+                ChatEntry entry = entryFactory.getNotation(charManager.findCharacter(CharacterManager.USER_SYSTEM), R.string.exported, new Object[]{file.getName()});
+                chatroomManager.addMessage(chatroomManager.getActiveChat(), entry);
+
+                // Tell the media scanner about the new file so that it is
+                // immediately available to the user.
+                MediaScannerConnection.scanFile(activity, new String[]{file.toString()}, null, null);
+            }
+
+            @Override
+            public void onFailed(File file) {
+                if (!popupWindow.isShowing()) {
+                    // Cancelled
+                    return;
+                }
+                popupWindow.dismiss();
+
+                ChatEntry entry = entryFactory.getError(charManager.findCharacter(CharacterManager.USER_SYSTEM), R.string.export_failed);
+                chatroomManager.addMessage(chatroomManager.getActiveChat(), entry);
+            }
+        };
+    }
+
+    /**
+     * Start of the day, Long.MIN_VALUE if empty, null if it isn't a date.
+     */
+    private static Long parseDate(String text) {
+        if (text.trim().isEmpty()) {
+            return Long.MIN_VALUE;
+        }
+
+        try {
+            return new SimpleDateFormat(DATE_PATTERN, Locale.US).parse(text.trim()).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
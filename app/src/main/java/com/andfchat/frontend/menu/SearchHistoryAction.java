@@ -0,0 +1,197 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.menu;
+
+import roboguice.RoboGuice;
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Point;
+import android.text.SpannableStringBuilder;
+import android.view.Display;
+import android.view.Gravity;
+import android.view.KeyEvent;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.inputmethod.EditorInfo;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.PopupWindow;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.andfchat.R;
+import com.andfchat.core.data.Chatroom;
+import com.andfchat.core.data.ChatroomManager;
+import com.andfchat.core.data.history.HistoryIndex;
+import com.andfchat.core.data.history.HistoryManager;
+import com.andfchat.core.data.history.HistoryQuery;
+import com.andfchat.frontend.fragments.ChatFragment;
+import com.andfchat.frontend.popup.FListPopupWindow;
+
+public class SearchHistoryAction {
+
+    private final static int PAGE_SIZE = 30;
+
+    public static void open(final Activity activity, View parent, final ChatFragment chatFragment) {
+        final ChatroomManager chatroomManager = RoboGuice.getInjector(activity).getInstance(ChatroomManager.class);
+        final HistoryManager historyManager = RoboGuice.getInjector(activity).getInstance(HistoryManager.class);
+
+        LayoutInflater inflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+
+        View layout = inflater.inflate(R.layout.popup_search_history, null);
+
+        Display display = activity.getWindowManager().getDefaultDisplay();
+
+        Point size = new Point();
+        display.getSize(size);
+
+        int height = (int)(size.y * 0.8f);
+        int width = (int)(size.x * 0.8f);
+
+        final PopupWindow popupWindow = new FListPopupWindow(layout, width, height);
+        popupWindow.showAtLocation(parent, Gravity.CENTER, 0, 0);
+
+        final EditText searchField = (EditText)layout.findViewById(R.id.searchField);
+        final Button searchButton = (Button)layout.findViewById(R.id.searchButton);
+        final Button moreButton = (Button)layout.findViewById(R.id.moreResultsButton);
+        final ListView resultList = (ListView)layout.findViewById(R.id.searchResults);
+
+        final ResultAdapter adapter = new ResultAdapter(activity, chatroomManager);
+        resultList.setAdapter(adapter);
+
+        final View.OnClickListener searchListener = new View.OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                HistoryQuery query = HistoryQuery.parse(searchField.getText().toString());
+                adapter.clear();
+                adapter.query = null;
+                moreButton.setVisibility(View.GONE);
+
+                if (!query.isEmpty()) {
+                    adapter.query = query;
+                    search(activity, popupWindow, historyManager, adapter, moreButton, Long.MAX_VALUE);
+                }
+            }
+        };
+        searchButton.setOnClickListener(searchListener);
+
+        searchField.setOnEditorActionListener(new TextView.OnEditorActionListener() {
+
+            @Override
+            public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+                if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                    searchListener.onClick(v);
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        moreButton.setOnClickListener(new View.OnClickListener() {
+
+            @Override
+            public void onClick(View v) {
+                moreButton.setVisibility(View.GONE);
+                search(activity, popupWindow, historyManager, adapter, moreButton, adapter.next);
+            }
+        });
+
+        resultList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                HistoryIndex.Result result = adapter.getItem(position);
+
+                Chatroom chatroom = chatroomManager.getChatroom(result.channel.getChannelId());
+                if (chatroom == null) {
+                    Toast.makeText(activity, R.string.search_room_closed, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                chatFragment.showEntry(chatroom, result.entry, result.position);
+                chatroomManager.setActiveChat(chatroom);
+                popupWindow.dismiss();
+            }
+        });
+    }
+
+    private static void search(final Activity activity, final PopupWindow popupWindow, HistoryManager historyManager,
+            final ResultAdapter adapter, final Button moreButton, long cursor) {
+        final HistoryQuery query = adapter.query;
+
+        historyManager.search(query, cursor, PAGE_SIZE, new HistoryManager.SearchListener() {
+
+            @Override
+            public void onResults(HistoryIndex.ResultPage page) {
+                if (!popupWindow.isShowing() || adapter.query != query) {
+                    // Replaced by another search
+                    return;
+                }
+
+                adapter.addAll(page.results);
+                adapter.next = page.next;
+                moreButton.setVisibility(page.next != -1 ? View.VISIBLE : View.GONE);
+
+                if (adapter.isEmpty()) {
+                    Toast.makeText(activity, R.string.search_nothing_found, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    private static class ResultAdapter extends ArrayAdapter<HistoryIndex.Result> {
+
+        private final ChatroomManager chatroomManager;
+
+        private HistoryQuery query;
+        private long next = -1;
+
+        public ResultAdapter(Context context, ChatroomManager chatroomManager) {
+            super(context, R.layout.list_item_message);
+            this.chatroomManager = chatroomManager;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View rowView = convertView;
+            if (rowView == null) {
+                LayoutInflater inflater = (LayoutInflater) getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+                rowView = inflater.inflate(R.layout.list_item_message, parent, false);
+            }
+
+            HistoryIndex.Result result = getItem(position);
+
+            // Name of open chatrooms, the id otherwise
+            Chatroom chatroom = chatroomManager.getChatroom(result.channel.getChannelId());
+            String channelName = chatroom != null ? chatroom.getName() : result.channel.getChannelName();
+
+            SpannableStringBuilder text = new SpannableStringBuilder(channelName);
+            text.append('\n');
+            text.append(result.entry.getChatMessage(getContext()));
+
+            ((TextView)rowView.findViewById(R.id.itemText)).setText(text);
+            return rowView;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.widget.Spinner;
 import com.andfchat.R;
 import com.andfchat.core.connection.FlistWebSocketConnection;
 import com.andfchat.core.data.CharacterManager;
+import com.andfchat.core.data.CharacterNameIndex;
 import com.andfchat.core.data.ChatroomManager;
 import com.andfchat.core.data.SessionData;
 import com.andfchat.core.data.history.HistoryManager;
@@ -35,6 +36,8 @@ public class FListCharSelectionPopup extends DialogFragment {
     protected ChatroomManager chatroomManager;
     @Inject
     protected CharacterManager characterManager;
+    @Inject
+    protected CharacterNameIndex nameIndex;
 
     private View view;
 
@@ -110,6 +113,7 @@ public class FListCharSelectionPopup extends DialogFragment {
                 if (sessionData.getCharacterName() == null || !sessionData.getCharacterName().equals(characterName)) {
                     chatroomManager.clear();
                     characterManager.clear();
+                    nameIndex.clear();
 
                     sessionData.setCharacterName(characterName);
                 }
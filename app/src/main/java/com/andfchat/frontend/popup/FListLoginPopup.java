@@ -18,12 +18,13 @@ import android.widget.TextView;
 import com.andfchat.R;
 import com.andfchat.core.connection.FlistWebSocketConnection;
 import com.andfchat.core.connection.FlistHttpClient;
+import com.andfchat.core.connection.FlistHttpService;
+import com.andfchat.core.connection.TicketManager;
 import com.andfchat.core.data.CharRelation;
 import com.andfchat.core.data.RelationManager;
 import com.andfchat.core.data.SessionData;
 import com.andfchat.frontend.events.AndFChatEventManager;
 import com.google.inject.Inject;
-import okhttp3.OkHttpClient;
 
 import java.util.Collections;
 import java.util.HashSet;
@@ -31,8 +32,6 @@ import java.util.HashSet;
 import java.util.Set;
 
 import retrofit2.Call;
-import retrofit2.GsonConverterFactory;
-import retrofit2.Retrofit;
 import roboguice.util.Ln;
 
 public class FListLoginPopup extends DialogFragment {
@@ -51,6 +50,10 @@ public class FListLoginPopup extends DialogFragment {
     protected FlistWebSocketConnection connection;
     @Inject
     private AndFChatEventManager eventManager;
+    @Inject
+    private FlistHttpService httpService;
+    @Inject
+    private TicketManager ticketManager;
 
     private enum JsonTokens {
         characters,
@@ -215,17 +218,7 @@ public class FListLoginPopup extends DialogFragment {
                         }
                     };
 
-                    OkHttpClient client = new OkHttpClient();
-                    //client.setProtocols(Collections.singletonList(Protocol.HTTP_1_1));
-
-                    Retrofit restAdapter = new Retrofit.Builder()
-                            .baseUrl("https://www.f-list.net")
-                            .addConverterFactory(GsonConverterFactory.create())
-                            .client(client)
-                            .build();
-
-                    FlistHttpClient httpClient = restAdapter.create(FlistHttpClient.class);
-                    Call<FlistHttpClient.LoginData> call = httpClient.logIn(account, password);
+                    Call<FlistHttpClient.LoginData> call = httpService.getClient().logIn(account, password);
                     call.enqueue(callback);
                 }
             }
@@ -244,6 +237,7 @@ public class FListLoginPopup extends DialogFragment {
     private void addData(FlistHttpClient.LoginData loginData) {
         // Init session
         sessionData.initSession(loginData.getTicket(), account.getText().toString(), password.getText().toString(), host.getText().toString());
+        ticketManager.setTicket(loginData.getTicket());
         // Add bookmarks to the RelationManager
 
         Set<String> bookmarksList = new HashSet<String>();
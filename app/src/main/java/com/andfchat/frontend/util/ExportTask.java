@@ -0,0 +1,267 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import roboguice.util.Ln;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.andfchat.core.data.Channel;
+import com.andfchat.core.data.history.HistoryLog;
+import com.andfchat.core.data.history.HistoryManager;
+import com.andfchat.core.data.messages.ChatEntry;
+
+/**
+ * Exports chat logs on a background thread. Entries are written to the file one by one, logs from the history are
+ * read from disk while writing, so they are never held in memory. Several chats are written into a zip file, one
+ * entry per chat.
+ *
+ * @author AndFChat
+ */
+public class ExportTask implements Runnable {
+
+    // Entries written between progress updates
+    private final static int PROGRESS_INTERVAL = 500;
+
+    public interface ExportListener {
+        /**
+         * Called on the main thread.
+         */
+        void onProgress(int chats, int totalChats, int entries);
+
+        /**
+         * Called on the main thread.
+         */
+        void onFinished(File file, int entries);
+
+        /**
+         * Called on the main thread, the incomplete file is deleted.
+         */
+        void onFailed(File file);
+    }
+
+    private final Exporter exporter;
+    private final File file;
+    private final ExportListener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Entries of a chat in memory, written after the ones read from the history of the chats, if any
+    private final List<ChatEntry> entries;
+    private final HistoryManager historyManager;
+    private final List<Channel> channels;
+    private final long from;
+    private final long to;
+
+    private volatile boolean cancelled = false;
+    private int written = 0;
+    private int chatsDone = 0;
+
+    private ExportTask(Exporter exporter, File file, ExportListener listener, List<ChatEntry> entries,
+            HistoryManager historyManager, List<Channel> channels, long from, long to) {
+        this.exporter = exporter;
+        this.file = file;
+        this.listener = listener;
+        this.entries = entries;
+        this.historyManager = historyManager;
+        this.channels = channels;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Exports the chat of this session. Chat dropped from memory is read back from the history, written from
+     * (inclusive) until the first of the entries.
+     * @param entries a copy, not changed while exporting
+     */
+    public static ExportTask exportSession(Context context, Exporter.Format format, File file, HistoryManager historyManager,
+            Channel channel, long from, List<ChatEntry> entries, ExportListener listener) {
+        long to = entries.isEmpty() ? Long.MAX_VALUE : entries.get(0).getTime();
+        ExportTask task = new ExportTask(new Exporter(context.getApplicationContext(), format), file, listener, entries,
+                historyManager, Collections.singletonList(channel), from, to);
+        task.start();
+        return task;
+    }
+
+    /**
+     * Exports the history on disk of the channels written from (inclusive) to (exclusive). More than one channel
+     * is written as zip file.
+     */
+    public static ExportTask exportHistory(Context context, Exporter.Format format, File file, HistoryManager historyManager,
+            List<Channel> channels, long from, long to, ExportListener listener) {
+        ExportTask task = new ExportTask(new Exporter(context.getApplicationContext(), format), file, listener, null,
+                historyManager, channels, from, to);
+        task.start();
+        return task;
+    }
+
+    /**
+     * Stops the export, the file is deleted.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void start() {
+        Thread thread = new Thread(this, "Exporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = System.currentTimeMillis();
+
+        try {
+            OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(file), 16384);
+            try {
+                if (channels.size() > 1) {
+                    writeZip(fileStream);
+                } else {
+                    Writer out = new OutputStreamWriter(fileStream, "UTF-8");
+                    writeChat(out, channels.get(0));
+                    out.flush();
+                }
+            } finally {
+                fileStream.close();
+            }
+
+            if (cancelled) {
+                throw new IOException("Cancelled");
+            }
+        } catch (IOException e) {
+            Ln.w("Export to " + file + " failed: " + e.getMessage());
+            file.delete();
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFailed(file);
+                }
+            });
+            return;
+        }
+
+        Ln.d("Exported " + written + " entries in " + (System.currentTimeMillis() - start) + "ms");
+        final int total = written;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(file, total);
+            }
+        });
+    }
+
+    private void writeZip(OutputStream fileStream) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(fileStream);
+        Writer out = new OutputStreamWriter(zip, "UTF-8");
+        Set<String> names = new HashSet<String>();
+
+        for (int i = 0; i < channels.size() && !cancelled; i++) {
+            Channel channel = channels.get(i);
+
+            // Names of chats are not unique
+            String base = channel.getChannelName().replaceAll("[^\\w .-]", "_");
+            String name = base + "." + exporter.getFormat().extension;
+            for (int number = 2; !names.add(name); number++) {
+                name = base + "-" + number + "." + exporter.getFormat().extension;
+            }
+
+            zip.putNextEntry(new ZipEntry(name));
+            writeChat(out, channel);
+            out.flush();
+            zip.closeEntry();
+
+            chatsDone++;
+            reportProgress();
+        }
+
+        zip.finish();
+    }
+
+    private void writeChat(final Writer out, final Channel channel) throws IOException {
+        exporter.begin(out, channel.getChannelName());
+
+        if (historyManager != null && from < to) {
+            final IOException[] failure = new IOException[1];
+            historyManager.readHistory(channel, from, to, new HistoryLog.EntryVisitor() {
+                @Override
+                public void visit(HistoryLog.Position position, ChatEntry entry) {
+                    if (failure[0] != null || cancelled) {
+                        return;
+                    }
+                    try {
+                        writeEntry(out, channel, entry);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        if (entries != null) {
+            for (ChatEntry entry : entries) {
+                if (cancelled) {
+                    return;
+                }
+                writeEntry(out, channel, entry);
+            }
+        }
+
+        exporter.end(out);
+    }
+
+    private void writeEntry(Writer out, Channel channel, ChatEntry entry) throws IOException {
+        exporter.write(out, channel, entry);
+        written++;
+        if (written % PROGRESS_INTERVAL == 0) {
+            reportProgress();
+        }
+    }
+
+    private void reportProgress() {
+        final int done = chatsDone;
+        final int total = written;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(done, channels.size(), total);
+            }
+        });
+    }
+}
@@ -1,20 +1,107 @@
 package com.andfchat.frontend.util;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import android.content.Context;
+import android.text.Html;
+import android.text.TextUtils;
 
-import com.andfchat.core.data.Chatroom;
+import com.andfchat.core.data.Channel;
 import com.andfchat.core.data.messages.ChatEntry;
 
+/**
+ * Writes chat logs entry by entry, as plain text, HTML with the BBCode rendered or JSON with one entry per line.
+ */
 public class Exporter {
 
-    public static byte[] exportText(Context context, Chatroom chatroom) {
+    public enum Format {
+        TEXT("txt"),
+        HTML("html"),
+        JSON("jsonl");
 
-        String text = "";
+        public final String extension;
 
-        for (ChatEntry entry : chatroom.getExportableChatHistory()) {
-            text += entry.getChatMessage(context).toString() + "\n";
+        Format(String extension) {
+            this.extension = extension;
         }
+    }
+
+    private final static String DATE_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private final Context context;
+    private final Format format;
+    private final DateFormat dateFormat = new SimpleDateFormat(DATE_PATTERN, Locale.US);
+
+    public Exporter(Context context, Format format) {
+        this.context = context;
+        this.format = format;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
 
-        return text.getBytes();
+    /**
+     * Starts the log of a chat.
+     */
+    public void begin(Writer out, String title) throws IOException {
+        if (format == Format.HTML) {
+            out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>");
+            out.write(TextUtils.htmlEncode(title));
+            out.write("</title>\n<style>\nbody { font-family: sans-serif; }\n.time { color: #888888; font-size: 70%; }\n"
+                    + ".entry p { display: inline; margin: 0; }\n</style>\n</head>\n<body>\n");
+        }
+    }
+
+    public void write(Writer out, Channel channel, ChatEntry entry) throws IOException {
+        String time = dateFormat.format(entry.getDate());
+
+        switch (format) {
+            case TEXT:
+                out.write('[');
+                out.write(time);
+                out.write("] ");
+                out.write(entry.getExportMessage(context).toString());
+                out.write('\n');
+                break;
+            case HTML:
+                out.write("<div class=\"entry\"><span class=\"time\">[");
+                out.write(time);
+                out.write("]</span> ");
+                out.write(Html.toHtml(entry.getExportMessage(context)).trim());
+                out.write("</div>\n");
+                break;
+            case JSON:
+                try {
+                    JSONObject json = new JSONObject();
+                    json.put("channel", channel.getChannelId());
+                    json.put("time", entry.getTime());
+                    json.put("type", entry.getMessageType().name());
+                    json.put("author", entry.getOwner().getName());
+                    json.put("text", entry.getExportText(context));
+                    out.write(json.toString());
+                    out.write('\n');
+                } catch (JSONException e) {
+                    throw new IOException("Can't write entry: " + e.getMessage());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Ends the log of a chat.
+     */
+    public void end(Writer out) throws IOException {
+        if (format == Format.HTML) {
+            out.write("</body>\n</html>\n");
+        }
+        out.flush();
     }
 }
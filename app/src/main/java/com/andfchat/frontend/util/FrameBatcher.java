@@ -0,0 +1,183 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import roboguice.util.Ln;
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Collects items added from any thread and hands them to the main thread in one batch per display frame,
+ * so a burst of items causes a single update of the ui. Uses the Choreographer where available (API 16+).
+ * @author AndFChat
+ */
+public class FrameBatcher<T> {
+
+    public interface BatchListener<T> {
+        /**
+         * Called on the main thread with all items added since the last frame.
+         */
+        void onBatch(List<T> batch);
+    }
+
+    // Statistics are logged after this amount of batches
+    private final static int LOG_INTERVAL = 100;
+
+    private final BatchListener<T> listener;
+    private final long frameIntervalNanos;
+    private final FrameScheduler scheduler;
+
+    private List<T> pending = new ArrayList<T>();
+    private boolean scheduled = false;
+    private long scheduledAt;
+
+    private int batches = 0;
+    private long items = 0;
+    private int maxBatchSize = 0;
+    private long skippedFrames = 0;
+
+    /**
+     * Has to be created on the main thread.
+     */
+    public FrameBatcher(float refreshRate, BatchListener<T> listener) {
+        this.listener = listener;
+        this.frameIntervalNanos = (long)(1000000000L / (refreshRate > 0 ? refreshRate : 60));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            scheduler = new ChoreographerScheduler();
+        } else {
+            scheduler = new HandlerScheduler();
+        }
+    }
+
+    public void add(T item) {
+        synchronized(this) {
+            pending.add(item);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+            scheduledAt = System.nanoTime();
+        }
+        scheduler.schedule();
+    }
+
+    /**
+     * Drops all items not delivered yet.
+     */
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    private void deliver(long frameTimeNanos) {
+        List<T> batch;
+        synchronized(this) {
+            batch = pending;
+            pending = new ArrayList<T>();
+            scheduled = false;
+
+            // Frames passed between adding the first item and its delivery, without counting the next frame
+            long late = (frameTimeNanos - scheduledAt) / frameIntervalNanos - 1;
+            if (late > 0) {
+                skippedFrames += late;
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            batches++;
+            items += batch.size();
+            maxBatchSize = Math.max(maxBatchSize, batch.size());
+        }
+
+        listener.onBatch(batch);
+
+        if (batches % LOG_INTERVAL == 0) {
+            Ln.d("Frame batches: " + getStatistics());
+        }
+    }
+
+    public synchronized int batchCount() {
+        return batches;
+    }
+
+    public synchronized long itemCount() {
+        return items;
+    }
+
+    public synchronized int maxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public synchronized long skippedFrameCount() {
+        return skippedFrames;
+    }
+
+    public synchronized String getStatistics() {
+        float average = batches > 0 ? (float)items / batches : 0;
+        return "[batches: " + batches + ", items: " + items + ", average batch: " + average + ", max batch: " + maxBatchSize
+                + ", skipped frames: " + skippedFrames + "]";
+    }
+
+    private interface FrameScheduler {
+        void schedule();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerScheduler implements FrameScheduler, Choreographer.FrameCallback {
+
+        private final Choreographer choreographer = Choreographer.getInstance();
+
+        @Override
+        public void schedule() {
+            // Choreographer accepts callbacks from every thread
+            choreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            deliver(frameTimeNanos);
+        }
+    }
+
+    private class HandlerScheduler implements FrameScheduler, Runnable {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void schedule() {
+            // Align to the next frame interval
+            long intervalMillis = Math.max(1, frameIntervalNanos / 1000000);
+            handler.postDelayed(this, intervalMillis - SystemClock.uptimeMillis() % intervalMillis);
+        }
+
+        @Override
+        public void run() {
+            deliver(System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ *     This file is part of AndFChat.
+ *
+ *     AndFChat is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     AndFChat is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with AndFChat.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package com.andfchat.frontend.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+
+import com.andfchat.R;
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+
+/**
+ * Single entry point for avatar and eicon images. Images are loaded by Glide, which keeps them in its memory and
+ * disk cache, merges requests for the same image and reuses bitmaps. Icons inside of chat messages are shared:
+ * every occurrence of the same avatar or eicon uses the same drawable, so it is only fetched and decoded once.
+ * @author AndFChat
+ */
+public class ImageLoader {
+
+    private static final String AVATAR_URL = "https://static.f-list.net/images/avatar/";
+    private static final String EICON_URL = "https://static.f-list.net/images/eicon/";
+
+    // Amount of inline icons kept, keyed by avatar/eicon name
+    private static final int ICON_CACHE_SIZE = 100;
+
+    private static final LruCache<String, IconDrawable> icons = new LruCache<String, IconDrawable>(ICON_CACHE_SIZE);
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    public static String getAvatarUrl(String name) {
+        return AVATAR_URL + encodeName(name) + ".png";
+    }
+
+    public static String getEiconUrl(String name) {
+        return EICON_URL + encodeName(name) + ".png";
+    }
+
+    /**
+     * Loads the avatar into the view, downsampled to the size of the view.
+     */
+    public static void loadAvatar(Context context, String name, ImageView view) {
+        Glide.with(context)
+                .load(getAvatarUrl(name))
+                .diskCacheStrategy(DiskCacheStrategy.ALL)
+                .placeholder(R.drawable.ic_chat_priv)
+                .error(R.drawable.ic_chat_priv)
+                .dontAnimate()
+                .into(view);
+    }
+
+    /**
+     * Has to be called before a recycled view, which might still be loading an avatar, shows something else.
+     */
+    public static void cancelLoad(ImageView view) {
+        Glide.clear(view);
+    }
+
+    /**
+     * Drawable of the avatar for use inside of texts, might be called from any thread.
+     */
+    public static Drawable getAvatarIcon(Context context, String name) {
+        return getIcon(context, "avatar:" + encodeName(name), getAvatarUrl(name));
+    }
+
+    /**
+     * Drawable of the eicon for use inside of texts, might be called from any thread.
+     */
+    public static Drawable getEicon(Context context, String name) {
+        return getIcon(context, "eicon:" + encodeName(name), getEiconUrl(name));
+    }
+
+    public static void clear() {
+        synchronized(icons) {
+            icons.evictAll();
+        }
+    }
+
+    /**
+     * Drops inline icons according to the level given by {@link ComponentCallbacks2#onTrimMemory(int)}. Texts
+     * already rendered keep showing theirs, others load them again.
+     */
+    public static void onTrimMemory(int level) {
+        synchronized(icons) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                icons.evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                icons.trimToSize(ICON_CACHE_SIZE / 2);
+            }
+        }
+    }
+
+    private static Drawable getIcon(Context context, String key, final String url) {
+        final Context appContext = context.getApplicationContext();
+
+        synchronized(icons) {
+            IconDrawable icon = icons.get(key);
+            if (icon != null) {
+                return icon;
+            }
+
+            final int size = appContext.getResources().getDimensionPixelSize(R.dimen.image_size_inline_icon);
+            final IconDrawable newIcon = new IconDrawable(appContext.getResources().getDrawable(R.drawable.ic_chat_priv), size);
+            icons.put(key, newIcon);
+
+            // Glide has to be started from the main thread
+            Runnable load = new Runnable() {
+                @Override
+                public void run() {
+                    Glide.with(appContext)
+                            .load(url)
+                            .asBitmap()
+                            .diskCacheStrategy(DiskCacheStrategy.ALL)
+                            .into(new SimpleTarget<Bitmap>(size, size) {
+                                @Override
+                                public void onResourceReady(Bitmap resource, GlideAnimation glideAnimation) {
+                                    newIcon.setImage(new BitmapDrawable(appContext.getResources(), resource));
+                                }
+                            });
+                }
+            };
+
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                load.run();
+            } else {
+                mainHandler.post(load);
+            }
+
+            return newIcon;
+        }
+    }
+
+    private static String encodeName(String name) {
+        return name.toLowerCase().replace(" ", "%20");
+    }
+
+    /**
+     * Fixed size drawable showing the placeholder until the image is loaded.
+     */
+    private static class IconDrawable extends Drawable {
+
+        private final int size;
+        private Drawable image;
+
+        public IconDrawable(Drawable placeholder, int size) {
+            this.size = size;
+            this.image = placeholder;
+            setBounds(0, 0, size, size);
+        }
+
+        public void setImage(Drawable image) {
+            image.setBounds(getBounds());
+            this.image = image;
+            invalidateSelf();
+        }
+
+        @Override
+        protected void onBoundsChange(Rect bounds) {
+            image.setBounds(bounds);
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            image.draw(canvas);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return size;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return size;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            image.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            image.setColorFilter(colorFilter);
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}